@@ -0,0 +1,192 @@
+package ooops;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import javax.imageio.ImageIO;
+
+// Golden-image regression check. Renders every script in <corpus>/scripts headless (in
+// parallel, through RenderFarm) and compares each canvas to <corpus>/expected/<name>.png.
+// A pixel differs when any colour channel is off by more than the tolerance; a script
+// fails when more than max-pixels differ or the sizes do not match. For every failure a
+// heatmap is written to <corpus>/out/diffs/<name>.png: the expected image dimmed, with
+// differing pixels in red (brighter = larger difference) and pixels within tolerance
+// but not identical in yellow. Exits with 1 if any script fails or has no golden image.
+//
+// The golden images must come from a trusted build: run once with --update, check the
+// images in <corpus>/expected, and commit them.
+//
+// Usage: java ooops.GoldenHarness [corpus dir] [--update] [--tolerance N] [--max-pixels N] [--workers N]
+public class GoldenHarness {
+
+    // Result of comparing one rendering with its golden image
+    static final class Diff {
+        final long differing;     // Pixels over the tolerance
+        final long nearMisses;    // Pixels that differ but within the tolerance
+        final int maxDelta;       // Largest channel difference anywhere
+        final BufferedImage heatmap;
+
+        Diff(long differing, long nearMisses, int maxDelta, BufferedImage heatmap) {
+            this.differing = differing;
+            this.nearMisses = nearMisses;
+            this.maxDelta = maxDelta;
+            this.heatmap = heatmap;
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        System.setProperty("java.awt.headless", "true");
+
+        File corpus = new File("golden");
+        boolean update = false;
+        int tolerance = 0;
+        long maxPixels = 0;
+        int workers = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--update":
+                    update = true;
+                    break;
+                case "--tolerance":
+                    tolerance = Integer.parseInt(args[++i]);
+                    break;
+                case "--max-pixels":
+                    maxPixels = Long.parseLong(args[++i]);
+                    break;
+                case "--workers":
+                    workers = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    corpus = new File(args[i]);
+            }
+        }
+
+        File[] scripts = new File(corpus, "scripts").listFiles((dir, name) -> name.endsWith(".txt") || name.endsWith(".lgo"));
+        if (scripts == null || scripts.length == 0) {
+            System.err.println("No scripts in " + new File(corpus, "scripts"));
+            System.exit(2);
+        }
+        Arrays.sort(scripts);
+        File expectedDir = new File(corpus, "expected");
+        File actualDir = new File(corpus, "out/actual");
+        File diffDir = new File(corpus, "out/diffs");
+        if ((!expectedDir.isDirectory() && !expectedDir.mkdirs()) || (!diffDir.isDirectory() && !diffDir.mkdirs())) {
+            System.err.println("Cannot create output folders in " + corpus);
+            System.exit(2);
+        }
+
+        long start = System.nanoTime();
+        RenderFarm.Summary rendered;
+        try (RenderFarm farm = new RenderFarm(workers, 30_000, 512L * 1024 * 1024, 0)) {  // Width 0: full canvas
+            rendered = farm.render(Arrays.asList(scripts), actualDir);
+        }
+        long renderNanos = System.nanoTime() - start;
+
+        List<String> failures = new ArrayList<>();
+        for (RenderFarm.JobResult job : rendered.getResults()) {
+            String name = baseName(job.getScript());
+            File actualFile = new File(actualDir, name + ".png");
+            File expectedFile = new File(expectedDir, name + ".png");
+
+            if (job.getStatus() != RenderFarm.Status.OK && job.getStatus() != RenderFarm.Status.ERRORS) {
+                report("ERROR", name, job.getStatus() + ": " + job.getMessage());
+                failures.add(name);
+                continue;
+            }
+            if (update) {
+                Files.copy(actualFile.toPath(), expectedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                report("UPDATED", name, "");
+                continue;
+            }
+            if (!expectedFile.exists()) {
+                report("NEW", name, "no golden image; run with --update");
+                failures.add(name);
+                continue;
+            }
+
+            BufferedImage expected = ImageIO.read(expectedFile);
+            BufferedImage actual = ImageIO.read(actualFile);
+            if (expected.getWidth() != actual.getWidth() || expected.getHeight() != actual.getHeight()) {
+                report("FAIL", name, String.format("size %dx%d, expected %dx%d", actual.getWidth(), actual.getHeight(),
+                        expected.getWidth(), expected.getHeight()));
+                failures.add(name);
+                continue;
+            }
+
+            Diff diff = compare(expected, actual, tolerance);
+            String detail = String.format("%d pixels differ, %d within tolerance, max channel delta %d",
+                    diff.differing, diff.nearMisses, diff.maxDelta);
+            File heatmapFile = new File(diffDir, name + ".png");
+            if (diff.differing > maxPixels) {
+                ImageIO.write(diff.heatmap, "png", heatmapFile);
+                report("FAIL", name, detail + " -> " + heatmapFile.getPath());
+                failures.add(name);
+            } else {
+                Files.deleteIfExists(heatmapFile.toPath());  // From an earlier failing run
+                report("PASS", name, detail);
+            }
+        }
+
+        System.out.printf("%n%d scripts, %d failed; rendered in %.0f ms, total %.0f ms%n", scripts.length,
+                failures.size(), renderNanos / 1e6, (System.nanoTime() - start) / 1e6);
+        if (!failures.isEmpty()) {
+            System.out.println("Failed: " + String.join(", ", failures));
+            System.exit(1);
+        }
+    }
+
+    // ========================== Pixel Diff ============================
+
+    // Compares two images of the same size row by row in parallel
+    static Diff compare(BufferedImage expected, BufferedImage actual, int tolerance) {
+        int w = expected.getWidth(), h = expected.getHeight();
+        int[] want = expected.getRGB(0, 0, w, h, null, 0, w);
+        int[] got = actual.getRGB(0, 0, w, h, null, 0, w);
+        int[] heat = new int[w * h];
+        long[] differing = new long[h];
+        long[] nearMisses = new long[h];
+        int[] maxDelta = new int[h];
+
+        IntStream.range(0, h).parallel().forEach(row -> {
+            for (int o = row * w, end = o + w; o < end; o++) {
+                int a = want[o], b = got[o];
+                int delta = Math.max(Math.abs((a >>> 16 & 0xFF) - (b >>> 16 & 0xFF)),
+                        Math.max(Math.abs((a >>> 8 & 0xFF) - (b >>> 8 & 0xFF)), Math.abs((a & 0xFF) - (b & 0xFF))));
+                if (delta > maxDelta[row]) maxDelta[row] = delta;
+
+                if (delta > tolerance) {
+                    differing[row]++;
+                    heat[o] = 0xFF000000 | (128 + delta / 2) << 16;                 // Red, brighter when further off
+                } else if (delta > 0) {
+                    nearMisses[row]++;
+                    heat[o] = 0xFFC8C800;                                            // Yellow
+                } else {
+                    int grey = ((a >>> 16 & 0xFF) + (a >>> 8 & 0xFF) + (a & 0xFF)) / 12;  // Expected, dimmed
+                    heat[o] = 0xFF000000 | grey << 16 | grey << 8 | grey;
+                }
+            }
+        });
+
+        BufferedImage heatmap = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        heatmap.setRGB(0, 0, w, h, heat, 0, w);
+        return new Diff(Arrays.stream(differing).sum(), Arrays.stream(nearMisses).sum(),
+                Arrays.stream(maxDelta).max().orElse(0), heatmap);
+    }
+
+    private static void report(String status, String name, String detail) {
+        System.out.printf("%-8s %-24s %s%n", status, name, detail);
+    }
+
+    private static String baseName(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+}
@@ -0,0 +1,100 @@
+package ooops;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Save and load times and file sizes of a command history as text lines and as a
+// binary history (.lbh), with a round-trip check and a seek through the block index.
+// Loading means reading every command and compiling it into an Instruction.
+//
+// Usage: java ooops.HistoryFormatBench [commands]
+public class HistoryFormatBench {
+
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        List<String> commands = session(count);
+        File text = File.createTempFile("history", ".txt");
+        File binary = File.createTempFile("history", BinaryHistory.EXTENSION);
+        File back = File.createTempFile("history", ".txt");
+        text.deleteOnExit();
+        binary.deleteOnExit();
+        back.deleteOnExit();
+
+        double textSave = 0, textLoad = 0, binarySave = 0, binaryLoad = 0;
+        for (int round = 0; round < 5; round++) {  // The last round is reported; earlier ones warm up
+            long start = System.nanoTime();
+            Files.write(text.toPath(), commands);
+            textSave = (System.nanoTime() - start) / 1e6;
+
+            start = System.nanoTime();
+            loadText(text);
+            textLoad = (System.nanoTime() - start) / 1e6;
+
+            start = System.nanoTime();
+            BinaryHistory.write(binary, commands);
+            binarySave = (System.nanoTime() - start) / 1e6;
+
+            start = System.nanoTime();
+            loadBinary(binary);
+            binaryLoad = (System.nanoTime() - start) / 1e6;
+        }
+
+        System.out.printf("%-8s %10s %10s %12s%n", "format", "save", "load", "size");
+        System.out.printf("%-8s %7.1f ms %7.1f ms %9d KB%n", "text", textSave, textLoad, text.length() / 1024);
+        System.out.printf("%-8s %7.1f ms %7.1f ms %9d KB%n", "binary", binarySave, binaryLoad, binary.length() / 1024);
+        System.out.printf("speed-up: save %.1fx, load %.1fx; size %.0f%%%n", textSave / binarySave,
+                textLoad / binaryLoad, 100.0 * binary.length() / text.length());
+
+        BinaryHistory.binaryToText(binary, back);
+        System.out.println("round trip identical: " + Files.readAllLines(back.toPath()).equals(commands));
+
+        long from = count - 10;
+        List<String> tail = new ArrayList<>();
+        long start = System.nanoTime();
+        BinaryHistory.read(binary, from, (in, line) -> tail.add(line.toString()));
+        System.out.printf("seek to command %d: %.2f ms, matches: %b%n", from, (System.nanoTime() - start) / 1e6,
+                tail.equals(commands.subList((int) from, count)));
+    }
+
+    private static long loadText(File file) throws IOException {
+        Instruction in = new Instruction();
+        long[] checksum = {0};
+        new ScriptReader(file).read((line, number) -> {
+            CommandCompiler.compile(line, in);
+            checksum[0] += in.op + in.args[0];
+        }, null, null);
+        return checksum[0];
+    }
+
+    private static long loadBinary(File file) throws IOException {
+        long[] checksum = {0};
+        BinaryHistory.read(file, (in, line) -> checksum[0] += in.op + in.args[0]);
+        return checksum[0];
+    }
+
+    // A drawing session: mostly moves and turns, some shapes and colours, a few typos
+    private static List<String> session(int count) {
+        Random random = new Random(19);
+        List<String> commands = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int kind = random.nextInt(100);
+            if (kind < 40) commands.add("move " + random.nextInt(200));
+            else if (kind < 55) commands.add("left " + random.nextInt(360));
+            else if (kind < 70) commands.add("right " + random.nextInt(360));
+            else if (kind < 75) commands.add("left");
+            else if (kind < 80) commands.add("reverse " + random.nextInt(100));
+            else if (kind < 85) commands.add("square " + (1 + random.nextInt(80)));
+            else if (kind < 88) commands.add("circle " + (1 + random.nextInt(80)));
+            else if (kind < 91) commands.add("pencolor " + random.nextInt(256) + " " + random.nextInt(256) + " " + random.nextInt(256));
+            else if (kind < 94) commands.add(random.nextBoolean() ? "penup" : "pendown");
+            else if (kind < 97) commands.add("reset");
+            else if (kind < 99) commands.add("move  " + random.nextInt(50));  // Not canonical: stored as text
+            else commands.add("mvoe " + random.nextInt(50));                  // Typo: stored as text
+        }
+        return commands;
+    }
+}
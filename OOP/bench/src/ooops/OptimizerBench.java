@@ -0,0 +1,114 @@
+package ooops;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// Replay time of a command session as written and after CommandOptimizer, on headless
+// canvases, with a check that both leave the same pixels and the same turtle. The
+// session is interactive-looking drawing: turns nudged back and forth, the pen lifted
+// to walk somewhere else, colours picked twice, resets and the odd clear.
+//
+// Usage: java ooops.OptimizerBench [commands]
+public class OptimizerBench {
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        List<String> commands = session(count);
+
+        double rawMillis = 0, optimizedMillis = 0, optimizeMillis = 0;
+        List<String> optimized = null;
+        boolean identical = true;
+        String summary = "";
+        for (int round = 0; round < 4; round++) {  // The last round is reported; earlier ones warm up
+            GraphicsSystem raw = new GraphicsSystem(true);
+            long start = System.nanoTime();
+            replay(raw, commands);
+            rawMillis = (System.nanoTime() - start) / 1e6;
+
+            GraphicsSystem fast = new GraphicsSystem(true);
+            start = System.nanoTime();
+            CommandOptimizer optimizer = new CommandOptimizer(fast.getWidth(), fast.getHeight(), fast.currentTurtle());
+            optimized = new ArrayList<>(count);
+            for (String command : commands) {
+                optimizer.add(command);
+                for (String out; (out = optimizer.poll()) != null; ) optimized.add(out);
+            }
+            optimizer.finish();
+            for (String out; (out = optimizer.poll()) != null; ) optimized.add(out);
+            optimizeMillis = (System.nanoTime() - start) / 1e6;
+            summary = optimizer.summary();
+
+            start = System.nanoTime();
+            replay(fast, optimized);
+            optimizedMillis = (System.nanoTime() - start) / 1e6;
+
+            identical &= samePixels(raw.getBufferedImage(), fast.getBufferedImage())
+                    && raw.currentTurtle().toString().equals(fast.currentTurtle().toString());
+        }
+
+        System.out.println(summary);
+        System.out.printf("%-10s %10s %10s%n", "replay", "commands", "time");
+        System.out.printf("%-10s %10d %7.1f ms%n", "as written", commands.size(), rawMillis);
+        System.out.printf("%-10s %10d %7.1f ms (+ %.1f ms to optimize)%n", "optimized", optimized.size(),
+                optimizedMillis, optimizeMillis);
+        System.out.printf("replay time cut by %.0f%%; same image and turtle: %b%n",
+                100 * (1 - (optimizedMillis + optimizeMillis) / rawMillis), identical);
+        if (!identical) System.exit(1);
+    }
+
+    private static void replay(GraphicsSystem canvas, List<String> commands) {
+        Instruction in = new Instruction();
+        for (String command : commands) {
+            CommandCompiler.compile(command, in);
+            canvas.executeCaptured(in, command);
+        }
+    }
+
+    private static boolean samePixels(BufferedImage a, BufferedImage b) {
+        int w = a.getWidth(), h = a.getHeight();
+        return w == b.getWidth() && h == b.getHeight()
+                && Arrays.equals(a.getRGB(0, 0, w, h, null, 0, w), b.getRGB(0, 0, w, h, null, 0, w));
+    }
+
+    private static List<String> session(int count) {
+        Random random = new Random(42);
+        String[] colours = {"red", "blue", "green", "white", "pen 200 120 40"};
+        List<String> commands = new ArrayList<>(count);
+        commands.add("pendown");
+        while (commands.size() < count) {
+            int kind = random.nextInt(100);
+            if (kind < 30) {
+                // Nudging the heading until it looks right
+                for (int i = 1 + random.nextInt(4); i > 0; i--) {
+                    commands.add((random.nextBoolean() ? "left " : "right ") + random.nextInt(45));
+                }
+            } else if (kind < 55) {
+                commands.add("move " + (1 + random.nextInt(40)));
+            } else if (kind < 70) {
+                // Walking somewhere else with the pen up
+                commands.add("penup");
+                for (int i = 1 + random.nextInt(5); i > 0; i--) {
+                    commands.add(random.nextInt(3) == 0 ? "right 90" : (random.nextBoolean() ? "move " : "reverse ") + random.nextInt(30));
+                }
+                commands.add("pendown");
+            } else if (kind < 82) {
+                String colour = colours[random.nextInt(colours.length)];
+                commands.add(colour);
+                if (random.nextBoolean()) commands.add(colour);
+            } else if (kind < 88) {
+                commands.add("penwidth " + (1 + random.nextInt(3)));
+            } else if (kind < 94) {
+                commands.add((random.nextBoolean() ? "square " : "circle ") + (5 + random.nextInt(30)));
+            } else if (kind < 99) {
+                commands.add("reset");
+            } else {
+                commands.add("clear");
+            }
+        }
+        return commands;
+    }
+}
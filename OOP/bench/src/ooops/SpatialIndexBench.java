@@ -0,0 +1,72 @@
+package ooops;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+// Redraw time of a small dirty rectangle against segment count, with a full scan of
+// the display list versus a SegmentGrid lookup.
+//
+// Usage: java ooops.SpatialIndexBench
+public class SpatialIndexBench {
+
+    private static final int WIDTH = 800;
+    private static final int HEIGHT = 400;
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        BufferedImage canvas = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Rectangle dirty = new Rectangle(380, 180, 40, 40);
+
+        System.out.printf("%10s %14s %14s %10s%n", "segments", "scan (us)", "indexed (us)", "speed-up");
+        for (int n = 1_000; n <= 1_000_000; n *= 10) {
+            DisplayList list = randomTurtleWalk(n);
+            SegmentGrid grid = new SegmentGrid(WIDTH, HEIGHT, 32);
+            grid.sync(list);
+
+            double scan = time(() -> {
+                Graphics2D g = canvas.createGraphics();
+                list.render(g, 1.0, dirty);
+                g.dispose();
+            });
+            double indexed = time(() -> {
+                Graphics2D g = canvas.createGraphics();
+                int count = grid.query(list, dirty);
+                list.render(g, 1.0, dirty, grid.getResults(), count);
+                g.dispose();
+            });
+
+            System.out.printf("%10d %14.1f %14.1f %9.1fx%n", n, scan, indexed, scan / indexed);
+        }
+    }
+
+    // Short segments wandering over the canvas, like a long turtle session
+    private static DisplayList randomTurtleWalk(int n) {
+        Random random = new Random(42);
+        DisplayList list = new DisplayList();
+        float x = WIDTH / 2f, y = HEIGHT / 2f;
+        for (int i = 0; i < n; i++) {
+            float nx = Math.max(0, Math.min(WIDTH, x + random.nextInt(41) - 20));
+            float ny = Math.max(0, Math.min(HEIGHT, y + random.nextInt(41) - 20));
+            list.addLine(x, y, nx, ny, 1 + random.nextInt(3), 0xFF000000 | random.nextInt(0xFFFFFF));
+            x = nx;
+            y = ny;
+        }
+        return list;
+    }
+
+    // Average microseconds per run after warm-up
+    private static double time(Runnable task) {
+        for (int i = 0; i < 20; i++) task.run();
+        int runs = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            task.run();
+            runs++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < 500_000_000L && runs < 10_000);
+        return elapsed / 1e3 / runs;
+    }
+}
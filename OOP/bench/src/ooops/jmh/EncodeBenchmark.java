@@ -0,0 +1,53 @@
+package ooops.jmh;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import ooops.GraphicsSystem;
+import ooops.ImageSaveService;
+
+// Saving the canvas as saveCanvasImageWithFormat does: the snapshot taken on the
+// caller's thread, and the full snapshot + encode + write round trip.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class EncodeBenchmark {
+
+    @Param({"png", "jpg"})
+    public String format;
+
+    private GraphicsSystem system;
+    private ImageSaveService saver;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        system = new GraphicsSystem(true);
+        system.runScript("repeat 36 [ pencolor 255 120 0 square 80 left 10 move 2 ]");
+        saver = system.getImageSaver();
+        file = File.createTempFile("encode-bench", "." + format);
+        file.deleteOnExit();
+    }
+
+    // What the caller pays before the save goes to the background
+    @Benchmark
+    public BufferedImage snapshot() {
+        return ImageSaveService.snapshot(system.getBufferedImage());
+    }
+
+    @Benchmark
+    public Exception snapshotAndSave() throws Exception {
+        CompletableFuture<Exception> done = new CompletableFuture<>();
+        saver.save(ImageSaveService.snapshot(system.getBufferedImage()), format, file,
+                (job, failure) -> done.complete(failure));
+        return done.get();
+    }
+}
@@ -0,0 +1,56 @@
+package ooops.jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import ooops.CommandJournal;
+
+// Per-command cost of the auto-save journal behind logCommand and saveAuto, for each
+// sync policy.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JournalBenchmark {
+
+    @Param({"NONE", "ON_FLUSH", "EVERY_RECORD"})
+    public CommandJournal.SyncPolicy policy;
+
+    private File dir;
+    private CommandJournal journal;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("journal-bench").toFile();
+        journal = new CommandJournal(dir, 32, 1000, policy, 4L * 1024 * 1024, 60L * 60 * 1000);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        journal.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) f.delete();
+        }
+        dir.delete();
+    }
+
+    // logCommand: one record
+    @Benchmark
+    public void append() throws IOException {
+        journal.append("move 10");
+    }
+
+    // saveAuto: one record and an explicit flush
+    @Benchmark
+    public void appendAndFlush() throws IOException {
+        journal.append("move 10");
+        journal.flush();
+    }
+}
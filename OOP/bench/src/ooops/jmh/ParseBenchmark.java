@@ -0,0 +1,65 @@
+package ooops.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ooops.CommandCompiler;
+import ooops.GraphicsSystem;
+import ooops.Instruction;
+
+// Cost of turning a command line into an Instruction, alone and through evaluate
+// (compile, validate, draw nothing, log to history), and of rejecting a bad line.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class ParseBenchmark {
+
+    private static final String[] LINES = {
+        "move 10", "left 45", "right", "pencolor 255 128 0", "penwidth 3",
+        "triangle 30 40 50", "penup", "pendown", "move -5", "nonsense 1"
+    };
+
+    private final Instruction instruction = new Instruction();
+    private GraphicsSystem system;
+    private int next;
+
+    // A fresh canvas per iteration keeps the history from growing across the whole run;
+    // without undo checkpoints evaluateTurn is not timing a canvas copy every 50 commands
+    @Setup(Level.Iteration)
+    public void setUp() {
+        system = new GraphicsSystem(true);
+        system.setUndoCheckpoints(false);
+        system.evaluate("penup");
+    }
+
+    @Benchmark
+    public void compile(Blackhole bh) {
+        bh.consume(CommandCompiler.compile(nextLine(), instruction));
+        bh.consume(instruction.args[0]);
+    }
+
+    @Benchmark
+    public void evaluateTurn() {
+        system.evaluate("left 1");
+    }
+
+    // The checks execute makes before reporting an error, without the report itself
+    // (headless errors are printed, which would be measured instead)
+    @Benchmark
+    public void rejectInvalid(Blackhole bh) {
+        bh.consume(CommandCompiler.compile("move abc", instruction));         // Fails to compile
+        bh.consume(CommandCompiler.compile("pencolor 300 0 0", instruction)); // Compiles; argument out of range
+        bh.consume(CommandCompiler.checkArgs(instruction));
+    }
+
+    private String nextLine() {
+        String line = LINES[next];
+        next = (next + 1) % LINES.length;
+        return line;
+    }
+}
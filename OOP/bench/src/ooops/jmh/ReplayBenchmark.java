@@ -0,0 +1,151 @@
+package ooops.jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import ooops.CommandCompiler;
+import ooops.GraphicsSystem;
+import ooops.Instruction;
+import ooops.ScriptReader;
+import ooops.TurtleState;
+
+// Replaying a saved session: a command file streamed through the compiler the way
+// Load Commands does, and the same drawing written as a loop script.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class ReplayBenchmark {
+
+    @Param({"1000", "10000"})
+    public int commands;
+
+    private File file;
+    private String script;
+    private GraphicsSystem system;
+    private final Instruction instruction = new Instruction();
+
+    // The turtle is followed while the session is written, so every move stays on the
+    // canvas and the replay never takes the error path
+    @Setup(Level.Trial)
+    public void writeSession() throws IOException {
+        GraphicsSystem canvas = new GraphicsSystem(true);
+        Walk walk = new Walk(canvas.getWidth(), canvas.getHeight(), canvas.currentTurtle());
+        Random random = new Random(1);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < commands; i++) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    lines.add(walk.move(random.nextInt(11), random.nextBoolean() ? 1 : -1));
+                    break;
+                case 1: {
+                    int angle = random.nextInt(360);
+                    walk.turn(-angle);
+                    lines.add("left " + angle);
+                    break;
+                }
+                case 2:
+                    lines.add("pencolor " + random.nextInt(256) + " " + random.nextInt(256) + " " + random.nextInt(256));
+                    break;
+                default: {
+                    int side = 5 + random.nextInt(20);
+                    for (int n = 0; n < 4; n++) {
+                        walk.forward(side);
+                        walk.turn(-90);
+                    }
+                    lines.add("square " + side);
+                    break;
+                }
+            }
+        }
+        file = File.createTempFile("replay-bench", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+
+        script = "repeat " + commands / 4 + " [ move 5 left 7 pencolor 255 0 0 square 10 reverse 5 ]";
+    }
+
+    // A fresh canvas each time so history and undo state do not accumulate
+    @Setup(Level.Invocation)
+    public void newCanvas() {
+        system = new GraphicsSystem(true);
+    }
+
+    @Benchmark
+    public int replayFile() throws IOException {
+        system.beginBatch();
+        try {
+            new ScriptReader(file).read((line, number) -> {
+                CommandCompiler.compile(line, instruction);
+                system.execute(instruction, line);
+            }, null, () -> false);
+        } finally {
+            system.endBatch();
+        }
+        return system.getErrorCount();
+    }
+
+    @Benchmark
+    public int replayScript() {
+        system.runScript(script);
+        return system.getErrorCount();
+    }
+
+    // The turtle arithmetic and bounds check of execute, for writing moves that stay on the canvas
+    private static final class Walk {
+        final int width, height;
+        final int homeX, homeY, homeDirection;
+        int x, y, direction;
+
+        Walk(int width, int height, TurtleState start) {
+            this.width = width;
+            this.height = height;
+            homeX = x = start.x;
+            homeY = y = start.y;
+            homeDirection = direction = start.direction;
+        }
+
+        // The move as written, turned into a reverse, or a reset if neither stays on the canvas
+        String move(int distance, int sign) {
+            if (fits(distance * sign)) {
+                forward(distance * sign);
+                return (sign > 0 ? "move " : "reverse ") + distance;
+            }
+            if (fits(-distance * sign)) {
+                forward(-distance * sign);
+                return (sign > 0 ? "reverse " : "move ") + distance;
+            }
+            x = homeX;
+            y = homeY;
+            direction = homeDirection;
+            return "reset";
+        }
+
+        boolean fits(int distance) {
+            double radians = Math.toRadians(direction);
+            int futureX = x + (int) (Math.abs(distance) * Math.sin(radians)) * Integer.signum(distance);
+            int futureY = y + (int) (Math.abs(distance) * Math.cos(radians)) * Integer.signum(distance);
+            return futureX >= 0 && futureX <= width && futureY >= 0 && futureY <= height;
+        }
+
+        void forward(int distance) {
+            double radians = Math.toRadians(direction);
+            x += (int) (distance * Math.sin(radians));
+            y += (int) (distance * Math.cos(radians));
+        }
+
+        void turn(int degrees) {
+            direction = Math.floorMod(direction + degrees, 360);
+        }
+    }
+}
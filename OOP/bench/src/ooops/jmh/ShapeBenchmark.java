@@ -0,0 +1,56 @@
+package ooops.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import ooops.GraphicsSystem;
+
+// Drawing cost of the shape commands on the off-screen canvas.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class ShapeBenchmark {
+
+    private static final int CLEAR_EVERY = 10_000;  // Bounds the display list
+
+    private GraphicsSystem system;
+    private int drawn;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        system = new GraphicsSystem(true);
+    }
+
+    @Benchmark
+    public void triangle() {
+        system.reset();  // Integer angles drift; start each triangle from the same place
+        system.Triangle(60, 80, 100);
+        drawn();
+    }
+
+    @Benchmark
+    public void square() {
+        system.square(50);
+        drawn();
+    }
+
+    @Benchmark
+    public void equilateral() {
+        system.EquilateralTriangle(50);
+        drawn();
+    }
+
+    @Benchmark
+    public void circle() {
+        system.circle(40);
+        drawn();
+    }
+
+    private void drawn() {
+        if (++drawn % CLEAR_EVERY == 0) system.clear();
+    }
+}
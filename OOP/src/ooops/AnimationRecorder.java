@@ -0,0 +1,293 @@
+package ooops;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOInvalidTreeException;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+// Records the drawing as it builds: one frame every N successful commands, written as
+// an animated GIF or a numbered PNG sequence. The drawing thread only copies the part
+// of the canvas that changed since the last frame, found from the primitives the display
+// list gained (the whole canvas after a clear, undo or image load). A background thread
+// narrows that rectangle to the pixels that really differ and encodes it; GIF frames are
+// stored as such deltas over the previous frame. At most MAX_PENDING frames wait for the
+// encoder; after that the drawing thread waits, so memory stays bounded.
+//
+// If the canvas changes size, a PNG sequence carries on with a whole frame at the new
+// size; a GIF cannot change its logical screen, so the recording fails with an error.
+public class AnimationRecorder {
+
+    public enum Format {
+        GIF,           // One animated GIF file
+        PNG_SEQUENCE   // frame_00001.png, frame_00002.png, ... in a directory
+    }
+
+    private static final int MAX_PENDING = 16;
+
+    private final File output;
+    private final Format format;
+    private final int commandsPerFrame;
+    private final int frameDelayMillis;
+
+    private final ExecutorService encoder = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "animation-encoder");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Semaphore pending = new Semaphore(MAX_PENDING);
+
+    // Drawing thread
+    private int commandsSinceFrame;
+    private int lastListSize;
+    private int lastResets;
+    private boolean fullFrame = true;   // The first frame is the whole canvas
+    private long captured;
+    private int canvasWidth;            // Size of the last captured canvas
+    private int canvasHeight;
+
+    // Encoder thread
+    private BufferedImage current;      // Composite of every frame so far
+    private ImageWriter gifWriter;
+    private ImageOutputStream gifStream;
+    private long written;
+    private long unchanged;             // Frames dropped because no pixel changed
+    private long deltaPixels;
+    private long framePixels;           // Pixels of every written frame, for the re-encoded share
+    private volatile IOException failure;
+
+    public AnimationRecorder(File output, Format format, int commandsPerFrame, int frameDelayMillis) {
+        this.output = output;
+        this.format = format;
+        this.commandsPerFrame = Math.max(1, commandsPerFrame);
+        this.frameDelayMillis = Math.max(10, frameDelayMillis);
+    }
+
+    public File getOutput() {
+        return output;
+    }
+
+    // Why the recording cannot go on, or null; stop throws it too
+    public IOException getFailure() {
+        return failure;
+    }
+
+    // Captures the canvas as it is now as the first frame
+    public void start(BufferedImage canvas, DisplayList list) throws InterruptedException {
+        if (format == Format.PNG_SEQUENCE && !output.isDirectory() && !output.mkdirs()) {
+            failure = new IOException("Cannot create " + output);
+        }
+        capture(canvas, list);
+    }
+
+    // Called after every successful command; takes a frame every commandsPerFrame commands
+    public void commandDone(int op, BufferedImage canvas, DisplayList list) throws InterruptedException {
+        if (op == Opcodes.NAME || op == Opcodes.ABOUT) fullFrame = true;  // Drawn without the display list
+        if (++commandsSinceFrame >= commandsPerFrame) capture(canvas, list);
+    }
+
+    // Takes a last frame for any commands since the previous one, finishes the file and
+    // returns a one-line summary
+    public String stop(BufferedImage canvas, DisplayList list) throws IOException, InterruptedException {
+        if (commandsSinceFrame > 0) capture(canvas, list);
+        Future<?> done = encoder.submit(this::finish);
+        encoder.shutdown();
+        try {
+            done.get();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        if (failure != null) throw failure;
+        return String.format("Recorded %d frames (%d unchanged skipped, %.1f%% of pixels re-encoded) to %s",
+                written, unchanged, 100.0 * deltaPixels / Math.max(1, framePixels),
+                output.getAbsolutePath());
+    }
+
+    // ========================== Capture (drawing thread) ============================
+
+    private void capture(BufferedImage canvas, DisplayList list) throws InterruptedException {
+        commandsSinceFrame = 0;
+        if (failure != null) return;
+        if (captured > 0 && (canvas.getWidth() != canvasWidth || canvas.getHeight() != canvasHeight)) {
+            if (format == Format.GIF) {
+                failure = new IOException("The canvas changed size from " + canvasWidth + "x" + canvasHeight + " to "
+                        + canvas.getWidth() + "x" + canvas.getHeight() + "; a GIF cannot change size");
+                return;
+            }
+            fullFrame = true;
+        }
+        canvasWidth = canvas.getWidth();
+        canvasHeight = canvas.getHeight();
+        Rectangle whole = new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight());
+        Rectangle dirty;
+        if (fullFrame || list.resets() != lastResets || list.size() < lastListSize) {
+            dirty = whole;
+        } else {
+            dirty = null;
+            for (int i = lastListSize; i < list.size(); i++) {
+                Rectangle r = list.bounds(i);
+                dirty = dirty == null ? r : dirty.union(r);
+            }
+            dirty = dirty == null ? null : dirty.intersection(whole);
+        }
+        fullFrame = false;
+        lastListSize = list.size();
+        lastResets = list.resets();
+        if (dirty == null || dirty.isEmpty()) return;  // Nothing drawn, e.g. only turns
+
+        WritableRaster pixels = canvas.getRaster().createCompatibleWritableRaster(dirty.width, dirty.height);
+        pixels.setRect(-dirty.x, -dirty.y, canvas.getRaster());
+        BufferedImage patch = new BufferedImage(canvas.getColorModel(), pixels, canvas.isAlphaPremultiplied(), null);
+        int x = dirty.x, y = dirty.y, width = canvas.getWidth(), height = canvas.getHeight();
+        captured++;
+        pending.acquire();
+        encoder.execute(() -> {
+            try {
+                encode(patch, x, y, width, height);
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+            } catch (RuntimeException e) {
+                if (failure == null) failure = new IOException("Encoding failed: " + e, e);
+            } finally {
+                pending.release();
+            }
+        });
+    }
+
+    public long getCapturedFrames() {
+        return captured;
+    }
+
+    // ========================== Encoding (background thread) ============================
+
+    private void encode(BufferedImage patch, int x, int y, int width, int height) throws IOException {
+        if (failure != null) return;
+        boolean first = written == 0;
+        boolean resized = current == null || current.getWidth() != width || current.getHeight() != height;
+        if (resized) current = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);  // The patch is whole
+
+        // Narrow the patch to the pixels that differ from the previous frame
+        Rectangle changed = resized ? new Rectangle(0, 0, patch.getWidth(), patch.getHeight()) : changedArea(patch, x, y);
+        if (changed == null) {
+            unchanged++;
+            return;
+        }
+        BufferedImage delta = patch.getSubimage(changed.x, changed.y, changed.width, changed.height);
+        int dx = x + changed.x, dy = y + changed.y;
+        current.getRaster().setDataElements(dx, dy, toRgb(delta).getRaster());
+        deltaPixels += (long) changed.width * changed.height;
+
+        if (format == Format.GIF) {
+            // The first frame covers the whole canvas so it sets the GIF's logical screen
+            writeGifFrame(first ? current : toRgb(delta), first ? 0 : dx, first ? 0 : dy);
+        } else {
+            File file = new File(output, String.format("frame_%05d.png", written + 1));
+            if (!ImageIO.write(current, "png", file)) throw new IOException("No PNG writer available.");
+        }
+        written++;
+        framePixels += (long) width * height;
+    }
+
+    // Bounding box, relative to patch, of its pixels that differ from current; null if none
+    private Rectangle changedArea(BufferedImage patch, int x, int y) {
+        int w = patch.getWidth(), h = patch.getHeight();
+        int[] now = patch.getRGB(0, 0, w, h, null, 0, w);
+        int[] before = current.getRGB(x, y, w, h, null, 0, w);
+        int minX = w, minY = h, maxX = -1, maxY = -1;
+        for (int row = 0; row < h; row++) {
+            int o = row * w;
+            for (int col = 0; col < w; col++) {
+                if (((now[o + col] ^ before[o + col]) & 0xFFFFFF) == 0) continue;
+                if (col < minX) minX = col;
+                if (col > maxX) maxX = col;
+                if (row < minY) minY = row;
+                maxY = row;
+            }
+        }
+        return maxX < 0 ? null : new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
+
+    private static BufferedImage toRgb(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_INT_RGB) return image;
+        BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        rgb.getGraphics().drawImage(image, 0, 0, null);
+        return rgb;
+    }
+
+    private void writeGifFrame(BufferedImage image, int x, int y) throws IOException {
+        if (gifWriter == null) {
+            gifWriter = ImageIO.getImageWritersByFormatName("gif").next();
+            gifStream = ImageIO.createImageOutputStream(output);
+            if (gifStream == null) throw new IOException("Cannot write " + output);
+            gifWriter.setOutput(gifStream);
+            gifWriter.prepareWriteSequence(null);
+        }
+
+        IIOMetadata metadata = gifWriter.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), null);
+        String formatName = metadata.getNativeMetadataFormatName();
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(formatName);
+
+        IIOMetadataNode descriptor = child(root, "ImageDescriptor");
+        descriptor.setAttribute("imageLeftPosition", Integer.toString(x));
+        descriptor.setAttribute("imageTopPosition", Integer.toString(y));
+
+        IIOMetadataNode control = child(root, "GraphicControlExtension");
+        control.setAttribute("disposalMethod", "doNotDispose");  // Later frames are drawn over earlier ones
+        control.setAttribute("userInputFlag", "FALSE");
+        control.setAttribute("transparentColorFlag", "FALSE");
+        control.setAttribute("delayTime", Integer.toString(frameDelayMillis / 10));
+        control.setAttribute("transparentColorIndex", "0");
+
+        if (written == 0) {
+            // Loop forever (NETSCAPE2.0 application extension)
+            IIOMetadataNode extensions = child(root, "ApplicationExtensions");
+            IIOMetadataNode loop = new IIOMetadataNode("ApplicationExtension");
+            loop.setAttribute("applicationID", "NETSCAPE");
+            loop.setAttribute("authenticationCode", "2.0");
+            loop.setUserObject(new byte[] {1, 0, 0});
+            extensions.appendChild(loop);
+        }
+
+        try {
+            metadata.setFromTree(formatName, root);
+        } catch (IIOInvalidTreeException e) {
+            throw new IOException(e);
+        }
+        gifWriter.writeToSequence(new IIOImage(image, null, metadata), null);
+    }
+
+    private static IIOMetadataNode child(IIOMetadataNode root, String name) {
+        for (int i = 0; i < root.getLength(); i++) {
+            if (root.item(i).getNodeName().equals(name)) return (IIOMetadataNode) root.item(i);
+        }
+        IIOMetadataNode node = new IIOMetadataNode(name);
+        root.appendChild(node);
+        return node;
+    }
+
+    private void finish() {
+        if (gifWriter == null) return;
+        try {
+            gifWriter.endWriteSequence();
+            gifStream.close();
+        } catch (IOException e) {
+            if (failure == null) failure = e;
+        } finally {
+            gifWriter.dispose();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package ooops;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import javax.imageio.ImageIO;
+
+// Command-line entry point that replays a command script without a window and
+// writes the resulting canvas to a PNG.
+//
+// Usage: java ooops.BatchRenderer <script.txt> <output.png>
+public class BatchRenderer {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: java ooops.BatchRenderer <script.txt> <output.png>");
+            System.exit(2);
+        }
+
+        // Must be set before any AWT toolkit is initialised
+        System.setProperty("java.awt.headless", "true");
+
+        File script = new File(args[0]);
+        File output = new File(args[1]);
+
+        long start = System.nanoTime();
+        GraphicsSystem canvas = new GraphicsSystem(true);
+        canvas.setUndoCheckpoints(false);
+
+        long commands = 0;
+        long replayStart = System.nanoTime();
+        try (BufferedReader reader = Files.newBufferedReader(script.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                canvas.processCommand(line);
+                commands++;
+            }
+        }
+        long replayNanos = System.nanoTime() - replayStart;
+
+        boolean written = ImageIO.write(canvas.getBufferedImage(), "png", output);
+        canvas.dispose();  // Deletes any history spilled to disk
+        if (!written) {
+            System.err.println("No PNG writer available.");
+            System.exit(1);
+        }
+        long totalNanos = System.nanoTime() - start;
+
+        double replaySeconds = replayNanos / 1e9;
+        System.out.printf("Rendered %d commands (%d errors) to %s%n", commands, canvas.getErrorCount(), output.getAbsolutePath());
+        System.out.printf("Replay: %.1f ms, %.0f commands/s%n", replayNanos / 1e6,
+                replaySeconds > 0 ? commands / replaySeconds : 0.0);
+        System.out.printf("Total wall time: %.1f ms%n", totalNanos / 1e6);
+
+        System.exit(canvas.getErrorCount() == 0 ? 0 : 1);
+    }
+}
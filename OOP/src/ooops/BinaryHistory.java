@@ -0,0 +1,465 @@
+package ooops;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// Compact binary format for command histories (.lbh), much smaller and faster to load
+// than one command per text line:
+//
+//     header   "LBUH", version byte, flags byte (bit 0: has index)
+//     block*   uvarint payload length, uvarint record count, payload, CRC32 of payload (4 bytes)
+//     end      a block header of length 0 and count 0
+//     index    (optional) uvarint block count, then per block: file offset and first record (8 bytes each)
+//     trailer  (optional) index offset (8 bytes), "LBUI"
+//
+// A record is a uvarint tag followed by its data. Tag 0 is raw text: uvarint byte count
+// and UTF-8 bytes. Any other tag is ((opcode + 1) << 2 | argc) followed by argc zigzag
+// varint arguments; it is only used when the line is exactly the canonical text of the
+// compiled instruction ("move 10", "left"), so conversion to and from text is lossless.
+public final class BinaryHistory {
+
+    public static final String EXTENSION = ".lbh";
+
+    private static final byte[] MAGIC = {'L', 'B', 'U', 'H'};
+    private static final byte[] INDEX_MAGIC = {'L', 'B', 'U', 'I'};
+    private static final int VERSION = 1;
+    private static final int FLAG_INDEX = 1;
+    private static final int BLOCK_BYTES = 64 * 1024;  // Payload size at which a block is closed
+
+    // Receives each record: the compiled instruction (its error set if the text does
+    // not compile) and the exact command text; both are only valid during the call
+    public interface RecordHandler {
+        void record(Instruction in, CharSequence text) throws IOException;
+    }
+
+    private BinaryHistory() {
+    }
+
+    // True if file looks like a binary history
+    public static boolean isBinary(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] head = new byte[MAGIC.length];
+            return in.readNBytes(head, 0, head.length) == head.length && startsWithMagic(head);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // ========================== Writing ============================
+
+    public static final class Writer implements Closeable {
+        private final OutputStream out;
+        private final boolean withIndex;
+        private final Instruction in = new Instruction();
+        private final CRC32 crc = new CRC32();
+
+        private byte[] block = new byte[BLOCK_BYTES + 1024];
+        private int blockLength;
+        private int blockRecords;
+        private long written;          // Bytes written to out so far
+        private long records;
+        private final List<long[]> index = new ArrayList<>();  // {offset, first record} per block
+
+        public Writer(OutputStream out, boolean withIndex) throws IOException {
+            this.out = out;
+            this.withIndex = withIndex;
+            writeRaw(MAGIC, 0, MAGIC.length);
+            writeRaw(new byte[] {VERSION, (byte) (withIndex ? FLAG_INDEX : 0)}, 0, 2);
+        }
+
+        public Writer(File file) throws IOException {
+            this(new BufferedOutputStream(new FileOutputStream(file), 1 << 16), true);
+        }
+
+        public void write(CharSequence command) throws IOException {
+            if (parseCanonical(command, in)) {
+                ensure(5 + 5 * Instruction.MAX_ARGS);
+                putVarint((in.op + 1) << 2 | in.argc);
+                for (int i = 0; i < in.argc; i++) putVarint(zigzag(in.args[i]));
+            } else {
+                byte[] utf8 = command.toString().getBytes(StandardCharsets.UTF_8);
+                ensure(10 + utf8.length);
+                putVarint(0);
+                putVarint(utf8.length);
+                System.arraycopy(utf8, 0, block, blockLength, utf8.length);
+                blockLength += utf8.length;
+            }
+            blockRecords++;
+            records++;
+            if (blockLength >= BLOCK_BYTES) flushBlock();
+        }
+
+        public long getRecords() {
+            return records;
+        }
+
+        @Override
+        public void close() throws IOException {
+            flushBlock();
+            byte[] end = {0, 0};
+            writeRaw(end, 0, 2);
+
+            if (withIndex) {
+                long indexOffset = written;
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 * index.size() + 16);
+                DataOutputStream data = new DataOutputStream(bytes);
+                writeVarint(data, index.size());
+                for (long[] entry : index) {
+                    data.writeLong(entry[0]);
+                    data.writeLong(entry[1]);
+                }
+                data.writeLong(indexOffset);
+                data.write(INDEX_MAGIC);
+                byte[] tail = bytes.toByteArray();
+                writeRaw(tail, 0, tail.length);
+            }
+            out.close();
+        }
+
+        private void flushBlock() throws IOException {
+            if (blockRecords == 0) return;
+            index.add(new long[] {written, records - blockRecords});
+
+            byte[] header = new byte[20];
+            int n = BinaryHistory.putVarint(header, 0, blockLength);
+            n = BinaryHistory.putVarint(header, n, blockRecords);
+            writeRaw(header, 0, n);
+            writeRaw(block, 0, blockLength);
+
+            crc.reset();
+            crc.update(block, 0, blockLength);
+            int sum = (int) crc.getValue();
+            writeRaw(new byte[] {(byte) (sum >>> 24), (byte) (sum >>> 16), (byte) (sum >>> 8), (byte) sum}, 0, 4);
+
+            blockLength = 0;
+            blockRecords = 0;
+        }
+
+        private void writeRaw(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            written += length;
+        }
+
+        private void ensure(int bytes) {
+            if (blockLength + bytes > block.length) {
+                block = Arrays.copyOf(block, Math.max(block.length * 2, blockLength + bytes));
+            }
+        }
+
+        private void putVarint(int value) {
+            blockLength = BinaryHistory.putVarint(block, blockLength, value);
+        }
+    }
+
+    // Writes commands to file in the binary format
+    public static void write(File file, Iterable<String> commands) throws IOException {
+        try (Writer writer = new Writer(file)) {
+            for (String command : commands) writer.write(command);
+        }
+    }
+
+    // ========================== Reading ============================
+
+    // Reads every record of file in order; returns the number of records
+    public static long read(File file, RecordHandler handler) throws IOException {
+        return read(file, 0, handler);
+    }
+
+    // Reads the records from number first (0-based) onwards, using the index, when the
+    // file has one, to skip straight to the right block
+    public static long read(File file, long first, RecordHandler handler) throws IOException {
+        long start = 0;
+        long startRecord = 0;
+        if (first > 0) {
+            long[] entry = findBlock(file, first);
+            if (entry != null) {
+                start = entry[0];
+                startRecord = entry[1];
+            }
+        }
+
+        try (FileInputStream file_in = new FileInputStream(file)) {
+            byte[] head = new byte[6];
+            if (file_in.readNBytes(head, 0, head.length) != head.length || !startsWithMagic(head)) {
+                throw new IOException("Not a binary command history: " + file.getName());
+            }
+            if (head[4] > VERSION) throw new IOException("Unsupported history version " + head[4]);
+            if (start > 0) file_in.getChannel().position(start);
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(file_in, 1 << 16));
+            return readBlocks(in, first - startRecord, handler);
+        }
+    }
+
+    private static boolean startsWithMagic(byte[] head) {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (head[i] != MAGIC[i]) return false;
+        }
+        return true;
+    }
+
+    private static long readBlocks(DataInputStream in, long skip, RecordHandler handler) throws IOException {
+        Instruction instruction = new Instruction();
+        RecordText text = new RecordText(instruction);
+        CRC32 crc = new CRC32();
+        byte[] payload = new byte[BLOCK_BYTES + 1024];
+        long delivered = 0;
+        long blockNumber = 0;
+
+        while (true) {
+            int length = readVarint(in);
+            int count = readVarint(in);
+            if (length == 0 && count == 0) return delivered;
+
+            if (payload.length < length) payload = new byte[length];
+            in.readFully(payload, 0, length);
+            int expected = in.readInt();
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != expected) throw new IOException("Corrupt history block " + blockNumber);
+            blockNumber++;
+
+            int[] pos = {0};
+            for (int r = 0; r < count; r++) {
+                decode(payload, pos, instruction, text);
+                if (skip > 0) {
+                    skip--;
+                    continue;
+                }
+                handler.record(instruction, text);
+                delivered++;
+            }
+        }
+    }
+
+    // Decodes one record at pos[0] into in and text
+    private static void decode(byte[] payload, int[] pos, Instruction in, RecordText text) {
+        int tag = getVarint(payload, pos);
+        if (tag == 0) {
+            int length = getVarint(payload, pos);
+            String raw = new String(payload, pos[0], length, StandardCharsets.UTF_8);
+            pos[0] += length;
+            text.setRaw(raw);
+            CommandCompiler.compile(raw, in);
+            return;
+        }
+
+        int argc = tag & 3;
+        in.set((tag >>> 2) - 1, argc);
+        for (int i = 0; i < argc; i++) in.args[i] = unzigzag(getVarint(payload, pos));
+        if (argc == 0) in.args[0] = 90;  // Bare left/right turn 90, as the compiler does
+        text.setCanonical();
+    }
+
+    // Text of the current record; for an encoded instruction it is only built when first read
+    private static final class RecordText implements CharSequence {
+        private final Instruction in;
+        private final StringBuilder text = new StringBuilder(64);
+        private boolean built;
+
+        RecordText(Instruction in) {
+            this.in = in;
+        }
+
+        void setRaw(String raw) {
+            text.setLength(0);
+            text.append(raw);
+            built = true;
+        }
+
+        void setCanonical() {
+            built = false;
+        }
+
+        private StringBuilder text() {
+            if (!built) {
+                text.setLength(0);
+                appendCanonical(in, text);
+                built = true;
+            }
+            return text;
+        }
+
+        @Override
+        public int length() {
+            return text().length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            return text().charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return text().subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return text().toString();
+        }
+    }
+
+    private static long[] findBlock(File file, long record) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long length = raf.length();
+            if (length < 18) return null;
+            raf.seek(length - 12);
+            long indexOffset = raf.readLong();
+            byte[] magic = new byte[4];
+            raf.readFully(magic);
+            if (!Arrays.equals(magic, INDEX_MAGIC)) return null;  // Written without an index
+
+            raf.seek(indexOffset);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(raf.getFD())));
+            int blocks = readVarint(in);
+            long[] best = null;
+            for (int i = 0; i < blocks; i++) {
+                long offset = in.readLong();
+                long first = in.readLong();
+                if (first > record) break;
+                best = new long[] {offset, first};
+            }
+            return best;
+        }
+    }
+
+    // ========================== Conversion ============================
+
+    // Text (one command per line) to binary; returns the number of commands
+    public static long textToBinary(File text, File binary) throws IOException {
+        try (Writer writer = new Writer(binary)) {
+            new ScriptReader(text).read((line, number) -> {
+                try {
+                    writer.write(line);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, null, null);
+            return writer.getRecords();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Binary to text, one command per line; returns the number of commands
+    public static long binaryToText(File binary, File text) throws IOException {
+        try (java.io.Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(text), StandardCharsets.UTF_8), 1 << 16)) {
+            return read(binary, (in, line) -> {
+                out.append(line);
+                out.write('\n');
+            });
+        }
+    }
+
+    // Usage: java ooops.BinaryHistory <input> <output>; converts text to .lbh or back
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: java ooops.BinaryHistory <commands.txt|history.lbh> <output>");
+            System.exit(2);
+        }
+        File input = new File(args[0]);
+        File output = new File(args[1]);
+        long start = System.nanoTime();
+        long commands = isBinary(input) ? binaryToText(input, output) : textToBinary(input, output);
+        System.out.printf("Converted %d commands in %.1f ms (%d -> %d bytes)%n", commands,
+                (System.nanoTime() - start) / 1e6, input.length(), output.length());
+    }
+
+    // ========================== Encoding Helpers ============================
+
+    // Fills in and returns true if line is exactly the canonical text of a command that
+    // compiles: keyword, then single spaces before plain decimal arguments (no '+',
+    // leading zeros or "-0"). Anything else is stored as raw text.
+    static boolean parseCanonical(CharSequence line, Instruction in) {
+        int length = line.length();
+        int end = 0;
+        while (end < length && line.charAt(end) != ' ') end++;
+        int op = Opcodes.lookup(line, 0, end);
+        if (op == Opcodes.INVALID) return false;
+
+        int argc = 0;
+        int i = end;
+        while (i < length) {
+            if (argc == Instruction.MAX_ARGS) return false;
+            i++;  // The space
+            boolean negative = i < length && line.charAt(i) == '-';
+            if (negative) i++;
+            int start = i;
+            long value = 0;
+            while (i < length && i - start < 11) {
+                char c = line.charAt(i);
+                if (c == ' ') break;
+                if (c < '0' || c > '9') return false;
+                value = value * 10 + (c - '0');
+                i++;
+            }
+            int digits = i - start;
+            if (digits == 0 || digits > 10 || (digits > 1 && line.charAt(start) == '0')) return false;
+            if (i < length && line.charAt(i) != ' ') return false;
+            if (negative) value = -value;
+            if (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE || (negative && value == 0)) return false;
+            in.args[argc++] = (int) value;
+        }
+        if (!CommandCompiler.acceptsArgCount(op, argc)) return false;
+
+        in.set(op, argc);
+        if (argc == 0) in.args[0] = 90;  // Bare left/right turn 90, as the compiler does
+        return true;
+    }
+
+    // The canonical text of an instruction: keyword and arguments separated by spaces
+    static void appendCanonical(Instruction in, StringBuilder out) {
+        out.append(Opcodes.name(in.op));
+        for (int i = 0; i < in.argc; i++) out.append(' ').append(in.args[i]);
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int putVarint(byte[] buffer, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static int getVarint(byte[] buffer, int[] pos) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer[pos[0]++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if (b < 0x80) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,254 @@
+package ooops;
+
+// Turns one command line into an Instruction without allocating.
+// Tokens follow String.split(" ") rules (single-space separators, trailing empty
+// tokens dropped) so every line is accepted or rejected exactly as before, with
+// the same error message.
+public final class CommandCompiler {
+
+    private static final int MAX_TOKENS = Instruction.MAX_ARGS + 1;
+
+    private CommandCompiler() {
+    }
+
+    // Compiles line into out. Returns false (with out.error set) if it is not a valid command.
+    public static boolean compile(CharSequence line, Instruction out) {
+        return compile(line, 0, line.length(), out);
+    }
+
+    public static boolean compile(CharSequence line, int start, int end, Instruction out) {
+        // Token boundaries of the first few tokens, like split(" ")
+        int[] bounds = BOUNDS.get();
+        int count = tokenize(line, start, end, bounds);
+
+        if (count == 0) {
+            out.fail("Unexpected error: Index 0 out of bounds for length 0");
+            return false;
+        }
+
+        int op = Opcodes.lookup(line, bounds[0], bounds[1]);
+        if (op == Opcodes.INVALID) {
+            out.fail("Invalid command entered.");
+            return false;
+        }
+
+        if (compileArgs(op, line, bounds, count, out)) return true;
+        out.op = op;  // Keep the keyword of a malformed command, e.g. for statistics
+        return false;
+    }
+
+    private static boolean compileArgs(int op, CharSequence line, int[] bounds, int count, Instruction out) {
+        try {
+            switch (op) {
+                case Opcodes.MOVE:
+                case Opcodes.REVERSE:
+                    if (count < 2) {
+                        out.fail("Please enter a distance.");
+                        return false;
+                    }
+                    out.set(op, 1);
+                    out.args[0] = parseInt(line, bounds[2], bounds[3]);
+                    return true;
+
+                case Opcodes.LEFT:
+                case Opcodes.RIGHT:
+                    // Default to 90 degrees if no value is provided
+                    if (count == 1) {
+                        out.set(op, 0);
+                        out.args[0] = 90;
+                    } else {
+                        out.set(op, 1);
+                        out.args[0] = parseInt(line, bounds[2], bounds[3]);
+                    }
+                    return true;
+
+                case Opcodes.SQUARE:
+                case Opcodes.CIRCLE:
+                case Opcodes.EQUILATERAL:
+                case Opcodes.PENWIDTH:
+                    if (count < 2) {
+                        out.fail("Unexpected error: Index 1 out of bounds for length 1");
+                        return false;
+                    }
+                    try {
+                        out.set(op, 1);
+                        out.args[0] = parseInt(line, bounds[2], bounds[3]);
+                    } catch (NumberFormatException e) {
+                        out.fail("Invalid number format.");
+                        return false;
+                    }
+                    return true;
+
+                case Opcodes.RECORD:
+                case Opcodes.RECORDFRAMES:
+                    if (count < 2) {
+                        out.fail("Enter the number of commands per frame.");
+                        return false;
+                    }
+                    out.set(op, 1);
+                    out.args[0] = parseInt(line, bounds[2], bounds[3]);
+                    return true;
+
+                case Opcodes.TRIANGLE:
+                    if (count < 4) {
+                        out.fail("Enter 3 sides for triangle.");
+                        return false;
+                    }
+                    parseThree(op, line, bounds, out);
+                    return true;
+
+                case Opcodes.PENCOLOR:
+                case Opcodes.PEN:
+                    if (count < 4) {
+                        out.fail("Enter 3 RGB values (0–255).");
+                        return false;
+                    }
+                    try {
+                        parseThree(op, line, bounds, out);
+                    } catch (NumberFormatException e) {
+                        out.fail("RGB values must be valid numbers.");
+                        return false;
+                    }
+                    return true;
+
+                default:
+                    out.set(op, 0);  // Remaining commands take no parameters
+                    return true;
+            }
+        } catch (NumberFormatException e) {
+            out.fail("Invalid number format in parameters.");
+            return false;
+        }
+    }
+
+    // Range checks on the argument values; returns the error message or null if they are fine
+    public static String checkArgs(Instruction in) {
+        switch (in.op) {
+            case Opcodes.MOVE:
+            case Opcodes.REVERSE:
+                return in.args[0] < 0 ? "Distance cannot be negative." : null;
+
+            case Opcodes.LEFT:
+            case Opcodes.RIGHT:
+                return in.args[0] < 0 ? "Angle cannot be negative." : null;
+
+            case Opcodes.SQUARE:
+            case Opcodes.CIRCLE:
+            case Opcodes.EQUILATERAL:
+            case Opcodes.PENWIDTH:
+                return in.args[0] <= 0 ? "Parameter must be positive." : null;
+
+            case Opcodes.RECORD:
+            case Opcodes.RECORDFRAMES:
+                return in.args[0] <= 0 ? "Commands per frame must be positive." : null;
+
+            case Opcodes.PENCOLOR:
+            case Opcodes.PEN:
+                for (int i = 0; i < 3; i++) {
+                    if (in.args[i] < 0 || in.args[i] > 255) return "RGB values must be between 0 and 255.";
+                }
+                return null;
+
+            default:
+                return null;
+        }
+    }
+
+    // True if "keyword" followed by exactly argc valid numbers compiles to op with all of them
+    static boolean acceptsArgCount(int op, int argc) {
+        switch (op) {
+            case Opcodes.MOVE:
+            case Opcodes.REVERSE:
+            case Opcodes.SQUARE:
+            case Opcodes.CIRCLE:
+            case Opcodes.EQUILATERAL:
+            case Opcodes.PENWIDTH:
+            case Opcodes.RECORD:
+            case Opcodes.RECORDFRAMES:
+                return argc == 1;
+
+            case Opcodes.LEFT:
+            case Opcodes.RIGHT:
+                return argc <= 1;
+
+            case Opcodes.TRIANGLE:
+            case Opcodes.PENCOLOR:
+            case Opcodes.PEN:
+                return argc == 3;
+
+            default:
+                return argc == 0;
+        }
+    }
+
+    // ========================== Tokenizing ============================
+
+    private static final ThreadLocal<int[]> BOUNDS = ThreadLocal.withInitial(() -> new int[MAX_TOKENS * 2]);
+
+    // Fills bounds with start/end pairs of up to MAX_TOKENS tokens and returns the total token count
+    private static int tokenize(CharSequence line, int start, int end, int[] bounds) {
+        if (start == end) {
+            // "".split(" ") yields a single empty token
+            bounds[0] = start;
+            bounds[1] = end;
+            return 1;
+        }
+
+        int last = end;
+        while (last > start && line.charAt(last - 1) == ' ') last--;  // Trailing empty tokens are dropped
+        if (last == start) return 0;
+
+        int count = 0;
+        int tokenStart = start;
+        for (int i = start; i <= last; i++) {
+            if (i == last || line.charAt(i) == ' ') {
+                if (count < MAX_TOKENS) {
+                    bounds[count * 2] = tokenStart;
+                    bounds[count * 2 + 1] = i;
+                }
+                count++;
+                tokenStart = i + 1;
+            }
+        }
+        return count;
+    }
+
+    private static void parseThree(int op, CharSequence line, int[] bounds, Instruction out) {
+        out.set(op, 3);
+        out.args[0] = parseInt(line, bounds[2], bounds[3]);
+        out.args[1] = parseInt(line, bounds[4], bounds[5]);
+        out.args[2] = parseInt(line, bounds[6], bounds[7]);
+    }
+
+    // Same accepted syntax and overflow behaviour as Integer.parseInt, without a substring
+    static int parseInt(CharSequence s, int start, int end) {
+        if (start >= end) throw new NumberFormatException("For input string: \"\"");
+
+        boolean negative = false;
+        int i = start;
+        int limit = -Integer.MAX_VALUE;
+        char first = s.charAt(i);
+        if (first == '-' || first == '+') {
+            if (first == '-') {
+                negative = true;
+                limit = Integer.MIN_VALUE;
+            }
+            if (++i == end) throw badNumber(s, start, end);
+        }
+
+        int multmin = limit / 10;
+        int result = 0;
+        while (i < end) {
+            int digit = Character.digit(s.charAt(i++), 10);
+            if (digit < 0 || result < multmin) throw badNumber(s, start, end);
+            result *= 10;
+            if (result < limit + digit) throw badNumber(s, start, end);
+            result -= digit;
+        }
+        return negative ? result : -result;
+    }
+
+    private static NumberFormatException badNumber(CharSequence s, int start, int end) {
+        return new NumberFormatException("For input string: \"" + s.subSequence(start, end) + "\"");
+    }
+}
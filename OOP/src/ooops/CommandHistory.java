@@ -0,0 +1,271 @@
+package ooops;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The commands of a session, in order, in bounded memory. Recent commands are kept in a
+// hot window of runs: each run is one interned command string and a repeat count, so
+// "move 10" typed a thousand times in a row is a single run and every "penup" shares
+// one String. When the window fills up, its older half is spilled to a temporary
+// binary history file (BinaryHistory) and only the segment file is remembered.
+// Snapshots and writeTo read spilled segments back transparently. close() deletes the
+// segment files; until then they stay on disk, with deleteOnExit as a last resort.
+public class CommandHistory implements AutoCloseable {
+
+    private final int maxRuns;       // Runs kept in memory before the older half is spilled
+    private final int maxInterned;   // Distinct strings in the intern pool before it is reset
+
+    // Hot window: runs[i] repeated counts[i] times, oldest first
+    private String[] runs = new String[256];
+    private int[] counts = new int[256];
+    private int runCount;
+    private long hotCommands;
+
+    private final Map<String, String> interned = new HashMap<>();
+    private final List<Segment> segments = new ArrayList<>();
+    private long spilledCommands;
+    private File spillDir;
+    private boolean spillFailed;     // Reported once; the window then grows instead
+
+    // A spilled, never-modified part of the history
+    private static final class Segment {
+        final File file;
+        final long commands;
+
+        Segment(File file, long commands) {
+            this.file = file;
+            this.commands = commands;
+        }
+    }
+
+    public interface CommandConsumer {
+        void accept(CharSequence command) throws IOException;
+    }
+
+    // Defaults: 100,000 runs in memory, 65,536 interned strings
+    public CommandHistory() {
+        this(100_000, 65_536);
+    }
+
+    public CommandHistory(int maxRuns, int maxInterned) {
+        this.maxRuns = Math.max(2, maxRuns);
+        this.maxInterned = Math.max(1, maxInterned);
+    }
+
+    // ========================== Recording ============================
+
+    public void add(String command) {
+        if (runCount > 0 && runs[runCount - 1].equals(command) && counts[runCount - 1] < Integer.MAX_VALUE) {
+            counts[runCount - 1]++;
+        } else {
+            if (runCount == maxRuns) spill();
+            if (runCount == runs.length) {
+                runs = Arrays.copyOf(runs, runs.length * 2);
+                counts = Arrays.copyOf(counts, counts.length * 2);
+            }
+            runs[runCount] = intern(command);
+            counts[runCount] = 1;
+            runCount++;
+        }
+        hotCommands++;
+    }
+
+    // Removes the most recent occurrence of command still in memory (undo); returns
+    // false if there is none, e.g. because it was already spilled
+    public boolean removeLast(String command) {
+        for (int i = runCount - 1; i >= 0; i--) {
+            if (!runs[i].equals(command)) continue;
+            if (--counts[i] == 0) {
+                System.arraycopy(runs, i + 1, runs, i, runCount - i - 1);
+                System.arraycopy(counts, i + 1, counts, i, runCount - i - 1);
+                runs[--runCount] = null;
+                mergeAt(i);
+            }
+            hotCommands--;
+            return true;
+        }
+        return false;
+    }
+
+    // Joins the runs either side of a removed one if they hold the same command
+    private void mergeAt(int i) {
+        if (i == 0 || i >= runCount || !runs[i - 1].equals(runs[i])) return;
+        long merged = (long) counts[i - 1] + counts[i];
+        if (merged > Integer.MAX_VALUE) return;
+        counts[i - 1] = (int) merged;
+        System.arraycopy(runs, i + 1, runs, i, runCount - i - 1);
+        System.arraycopy(counts, i + 1, counts, i, runCount - i - 1);
+        runs[--runCount] = null;
+    }
+
+    private String intern(String command) {
+        String shared = interned.get(command);
+        if (shared != null) return shared;
+        if (interned.size() >= maxInterned) interned.clear();  // Cheaper than LRU; hot commands come back quickly
+        interned.put(command, command);
+        return command;
+    }
+
+    public long size() {
+        return spilledCommands + hotCommands;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int getRunsInMemory() {
+        return runCount;
+    }
+
+    public long getSpilledCommands() {
+        return spilledCommands;
+    }
+
+    public String describe() {
+        return String.format("history: %d commands, %d runs in memory, %d commands in %d spilled segments",
+                size(), runCount, spilledCommands, segments.size());
+    }
+
+    // ========================== Spilling ============================
+
+    // Writes the older half of the window to a new segment file and drops it from memory
+    private void spill() {
+        if (spillFailed) return;
+        int spilledRuns = runCount / 2;
+        long commands = 0;
+        try {
+            if (spillDir == null) {
+                spillDir = Files.createTempDirectory("ooops-history").toFile();
+                spillDir.deleteOnExit();
+            }
+            File file = new File(spillDir, "segment_" + segments.size() + BinaryHistory.EXTENSION);
+            file.deleteOnExit();
+            try (BinaryHistory.Writer writer = new BinaryHistory.Writer(file)) {
+                for (int i = 0; i < spilledRuns; i++) {
+                    for (int n = 0; n < counts[i]; n++) writer.write(runs[i]);
+                    commands += counts[i];
+                }
+            }
+            segments.add(new Segment(file, commands));
+        } catch (IOException e) {
+            spillFailed = true;
+            System.err.println("Could not spill command history to disk, keeping it in memory: " + e.getMessage());
+            return;
+        }
+
+        System.arraycopy(runs, spilledRuns, runs, 0, runCount - spilledRuns);
+        System.arraycopy(counts, spilledRuns, counts, 0, runCount - spilledRuns);
+        Arrays.fill(runs, runCount - spilledRuns, runCount, null);
+        runCount -= spilledRuns;
+        hotCommands -= commands;
+        spilledCommands += commands;
+    }
+
+    // Deletes the spilled segments and their directory. Snapshots taken earlier can no
+    // longer be read, and the history must not be used afterwards.
+    @Override
+    public void close() {
+        for (Segment segment : segments) segment.file.delete();
+        segments.clear();
+        if (spillDir != null) spillDir.delete();
+        spillDir = null;
+    }
+
+    // ========================== Reading ============================
+
+    // The history as it is now; later commands and undos do not change it
+    public Snapshot snapshot() {
+        return new Snapshot(new ArrayList<>(segments), Arrays.copyOf(runs, runCount), Arrays.copyOf(counts, runCount),
+                size());
+    }
+
+    public void writeTo(File file) throws IOException {
+        snapshot().writeTo(file);
+    }
+
+    public static final class Snapshot {
+        private final List<Segment> segments;
+        private final String[] runs;
+        private final int[] counts;
+        private final long size;
+
+        private Snapshot(List<Segment> segments, String[] runs, int[] counts, long size) {
+            this.segments = segments;
+            this.runs = runs;
+            this.counts = counts;
+            this.size = size;
+        }
+
+        public long size() {
+            return size;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        // Text, one command per line, or a binary history if the name ends in .lbh
+        public void writeTo(File file) throws IOException {
+            writeTo(file, null);
+        }
+
+        // The same, with every command passed through optimizer first. Returns false, and
+        // writes the history as it is, if optimizer is null or a command depends on the
+        // ones before it (CommandOptimizer.dependsOnHistory).
+        public boolean writeTo(File file, CommandOptimizer optimizer) throws IOException {
+            boolean optimize = optimizer != null && !dependsOnHistory();
+            if (file.getName().toLowerCase().endsWith(BinaryHistory.EXTENSION)) {
+                try (BinaryHistory.Writer writer = new BinaryHistory.Writer(file)) {
+                    copy(writer::write, optimize ? optimizer : null);
+                }
+                return optimize;
+            }
+
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16)) {
+                String separator = System.lineSeparator();  // Same line ends as Files.write
+                copy(command -> {
+                    out.append(command);
+                    out.write(separator);
+                }, optimize ? optimizer : null);
+            }
+            return optimize;
+        }
+
+        // Sends every command, oldest first, to consumer
+        public void forEach(CommandConsumer consumer) throws IOException {
+            for (Segment segment : segments) BinaryHistory.read(segment.file, (in, text) -> consumer.accept(text));
+            for (int i = 0; i < runs.length; i++) {
+                for (int n = 0; n < counts[i]; n++) consumer.accept(runs[i]);
+            }
+        }
+
+        private void copy(CommandConsumer out, CommandOptimizer optimizer) throws IOException {
+            if (optimizer == null) {
+                forEach(out);
+                return;
+            }
+            forEach(command -> {
+                optimizer.add(command);
+                for (String optimized; (optimized = optimizer.poll()) != null; ) out.accept(optimized);
+            });
+            optimizer.finish();
+            for (String optimized; (optimized = optimizer.poll()) != null; ) out.accept(optimized);
+        }
+
+        private boolean dependsOnHistory() throws IOException {
+            Instruction in = new Instruction();
+            boolean[] found = new boolean[1];
+            forEach(command -> {
+                if (!found[0] && CommandCompiler.compile(command, in)) found[0] = CommandOptimizer.dependsOnHistory(in.op);
+            });
+            return found[0];
+        }
+    }
+}
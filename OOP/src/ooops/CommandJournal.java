@@ -0,0 +1,178 @@
+package ooops;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+// Append-only log of accepted commands. Each command is written once as a single
+// line to the open journal file, so the cost per command stays the same however
+// long the session runs.
+public class CommandJournal implements Closeable {
+
+    // When written records are forced to disk
+    public enum SyncPolicy {
+        NONE,          // leave it to the OS
+        ON_FLUSH,      // fsync whenever the buffer is written out
+        EVERY_RECORD   // write and fsync every single record
+    }
+
+    public static final String PREFIX = "commands_";
+    public static final String SUFFIX = ".txt";
+
+    private final File dir;
+    private final int flushEvery;             // records buffered before a write
+    private final long flushIntervalMillis;   // max age of buffered records
+    private final SyncPolicy syncPolicy;
+    private final long maxFileBytes;          // rotate once a file reaches this size (0 = never)
+    private final long maxFileAgeMillis;      // rotate once a file is this old (0 = never)
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private int pendingRecords;
+    private long lastFlush;
+
+    private FileChannel channel;
+    private File currentFile;
+    private long currentSize;
+    private long openedAt;
+
+    // Defaults: flush every 32 records or every second, no fsync, rotate at 4 MB or hourly
+    public CommandJournal(File dir) {
+        this(dir, 32, 1000, SyncPolicy.NONE, 4L * 1024 * 1024, 60L * 60 * 1000);
+    }
+
+    public CommandJournal(File dir, int flushEvery, long flushIntervalMillis, SyncPolicy syncPolicy,
+                          long maxFileBytes, long maxFileAgeMillis) {
+        this.dir = dir;
+        this.flushEvery = Math.max(1, flushEvery);
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.syncPolicy = syncPolicy;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFileAgeMillis = maxFileAgeMillis;
+        this.lastFlush = System.currentTimeMillis();
+    }
+
+    // ========================== Writing ============================
+
+    public synchronized void append(String command) throws IOException {
+        byte[] record = (command + "\n").getBytes(StandardCharsets.UTF_8);
+
+        if (channel == null || needsRotation()) rotate();
+
+        if (record.length > buffer.remaining()) writeBuffer();
+        if (record.length > buffer.capacity()) {
+            writeFully(ByteBuffer.wrap(record));  // Too big to buffer, write straight through
+        } else {
+            buffer.put(record);
+        }
+        pendingRecords++;
+
+        if (syncPolicy == SyncPolicy.EVERY_RECORD
+                || pendingRecords >= flushEvery
+                || System.currentTimeMillis() - lastFlush >= flushIntervalMillis) {
+            flush();
+        }
+    }
+
+    // Writes buffered records out and applies the sync policy
+    public synchronized void flush() throws IOException {
+        if (channel == null) return;
+        writeBuffer();
+        if (syncPolicy != SyncPolicy.NONE) channel.force(false);
+        pendingRecords = 0;
+        lastFlush = System.currentTimeMillis();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel == null) return;
+        flush();
+        channel.close();
+        channel = null;
+    }
+
+    public synchronized File getCurrentFile() {
+        return currentFile;
+    }
+
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            currentSize += channel.write(data);
+        }
+    }
+
+    // ========================== Rotation ============================
+
+    private boolean needsRotation() {
+        long pendingSize = currentSize + buffer.position();
+        if (maxFileBytes > 0 && pendingSize >= maxFileBytes) return true;
+        return maxFileAgeMillis > 0 && System.currentTimeMillis() - openedAt >= maxFileAgeMillis;
+    }
+
+    private void rotate() throws IOException {
+        if (channel != null) {
+            close();
+        } else {
+            recoverLatest(dir);  // First open of this session: repair the previous one
+        }
+        if (!dir.exists()) dir.mkdirs();
+
+        String stamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+        File file = new File(dir, PREFIX + stamp + SUFFIX);
+        for (int i = 1; file.exists(); i++) {
+            file = new File(dir, PREFIX + stamp + "_" + i + SUFFIX);
+        }
+
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        currentFile = file;
+        currentSize = 0;
+        openedAt = System.currentTimeMillis();
+        System.out.println("Journaling commands to " + file.getAbsolutePath());
+    }
+
+    // ========================== Crash Recovery ============================
+
+    // Repairs the most recent journal in the directory, if any
+    public static void recoverLatest(File dir) throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files == null || files.length == 0) return;
+
+        File latest = files[0];
+        for (File f : files) {
+            if (f.lastModified() > latest.lastModified()) latest = f;
+        }
+        recover(latest);
+    }
+
+    // Cuts off a partially written last record (anything after the final newline).
+    // Returns the number of bytes dropped.
+    public static long recover(File file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = ch.size();
+            long end = size;
+            ByteBuffer one = ByteBuffer.allocate(1);
+
+            while (end > 0) {
+                one.clear();
+                ch.read(one, end - 1);
+                if (one.get(0) == '\n') break;
+                end--;
+            }
+
+            if (end < size) {
+                ch.truncate(end);
+                System.err.println("Recovered " + file.getName() + ": dropped " + (size - end) + " bytes of an incomplete record.");
+            }
+            return size - end;
+        }
+    }
+}
@@ -0,0 +1,547 @@
+package ooops;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Peephole optimizer for command streams: saved histories and files about to be replayed.
+// Commands go in one at a time through add and come out, fewer of them, through poll;
+// running the output leaves the same image (and turtle) as running the input.
+//
+//  - Runs of left/right, with pen and colour commands between them, become one net turn,
+//    or nothing if they cancel out.
+//  - Of pen, colour and width commands with nothing drawn in between only the last one
+//    is kept, and one that repeats the current setting is dropped.
+//  - Turns and pen-up moves right before a reset are dropped; the reset overrides them.
+//  - Where the turtle's position is known (a start state was given, or after a reset) a
+//    run of pen-up moves and turns becomes one jump: at most two axis-aligned moves, run
+//    on a TurtleModel to check that they land on exactly the same pixel.
+//  - Drawing since the last point where the turtle was known is dropped before a clear
+//    and replaced by the few commands that leave the turtle as it was; a clear with
+//    nothing drawn since the previous one is dropped.
+//  - Help, stats and commands that do not compile are dropped; they draw nothing. Moves
+//    the TurtleModel predicts would leave the canvas are passed on (execute refuses
+//    them) and the position counts as unknown after them.
+//
+// Everything that needs the turtle's position rests on TurtleModel matching LBUGraphics;
+// where that has not been checked, setPredictPositions(false) turns it off.
+//
+// Pen-down moves are never merged: two collinear segments are not always the same pixels
+// as one longer line (sin/cos truncation, stroke caps overlapping at the joint). A stream
+// holding undo, redo or load must not be optimized at all, since those act on the
+// commands before them as they were written (see dependsOnHistory).
+public class CommandOptimizer {
+
+    private static final int MAX_HELD = 16_384;  // Commands held back for a later clear before they are let out
+
+    private static final int UP = 0;
+    private static final int DOWN = 1;
+    private static final int UNKNOWN = -1;
+
+    private static final int TURN = 0;
+    private static final int MOVE = 1;
+
+    // One output command
+    private static final class Held {
+        final int op;
+        final String text;
+
+        Held(int op, String text) {
+            this.op = op;
+            this.text = text;
+        }
+    }
+
+    private static final Held PENUP = new Held(Opcodes.PENUP, "penup");
+    private static final Held PENDOWN = new Held(Opcodes.PENDOWN, "pendown");
+
+    private final int width;
+    private final int height;
+    private final Instruction in = new Instruction();
+    private boolean dropBeforeClear = true;
+    private boolean predictPositions = true;
+
+    // What is known about the turtle. Position and heading include the pending window;
+    // pen, colour and width are as of the last command passed on.
+    private final TurtleModel turtle;
+    private boolean placed;          // turtle.x and turtle.y are known
+    private boolean headed;          // turtle.direction is known
+    private int pen = UNKNOWN;
+    private boolean colourKnown;
+    private int colour;              // ARGB
+    private boolean strokeKnown;
+    private int stroke;
+
+    // Pending window: turns and pen-up moves, and the latest pen, colour and width settings
+    private int[] steps = new int[32];  // Pairs of TURN, clockwise degrees or MOVE, signed distance
+    private int stepCount;              // Ints used in steps
+    private boolean windowPlaced;
+    private boolean windowHeaded;
+    private int windowX;
+    private int windowY;
+    private int windowDirection;
+    private int pendingPen = UNKNOWN;
+    private Held pendingColour;
+    private int pendingColourValue;
+    private Held pendingStroke;
+    private int pendingStrokeValue;
+
+    // Output. Commands since the anchor, the last point where the turtle was known, are
+    // held back in case a clear makes them unnecessary (only with dropBeforeClear).
+    private final ArrayDeque<String> ready = new ArrayDeque<>();
+    private final List<Held> held = new ArrayList<>();
+    private boolean anchored;
+    private boolean anchorCleared;   // The anchor is right after a clear
+    private boolean drawnSinceAnchor;
+    private int anchorX;
+    private int anchorY;
+    private int anchorDirection;
+    private int anchorPen;
+    private Held colourSet;          // Colour and width commands passed on since the anchor
+    private Held strokeSet;
+
+    private final long[] opsIn = new long[Opcodes.count()];
+    private final long[] opsOut = new long[Opcodes.count()];
+    private long commandsIn;
+    private long commandsOut;
+    private long invalid;
+
+    // start is the turtle the output will run on, or null if that is not known (a saved
+    // file may be loaded at any time); then only changes that hold from any state are made
+    // until the stream itself resets the turtle. width and height are the canvas bounds.
+    public CommandOptimizer(int width, int height, TurtleState start) {
+        this.width = width;
+        this.height = height;
+        turtle = new TurtleModel(width, height, 0, 0, 0);
+        if (start != null) {
+            turtle.x = start.x;
+            turtle.y = start.y;
+            turtle.direction = Math.floorMod(start.direction, 360);
+            placed = headed = true;
+            pen = start.penDown ? DOWN : UP;
+            colourKnown = strokeKnown = true;
+            colour = start.colour;
+            stroke = start.stroke;
+            anchor(false);
+        }
+    }
+
+    // Whether drawing before a clear may be dropped. Only safe where every clear really
+    // clears: not where the user can cancel it from the save prompt. When off, nothing is
+    // held back, so commands come out as soon as the window before them is flushed.
+    public void setDropBeforeClear(boolean drop) {
+        dropBeforeClear = drop;
+        if (!drop) release();
+    }
+
+    // Whether TurtleModel may be used to follow the turtle's position (jumps, restoring
+    // the turtle before a clear). Off where it has not been checked against the
+    // LBUGraphics in use; then only changes that hold from any position are made. Call
+    // before the first add.
+    public void setPredictPositions(boolean predict) {
+        predictPositions = predict;
+        if (!predict) {
+            release();
+            placed = headed = false;
+        }
+    }
+
+    // True for commands that act on the history before them (undo, redo, load); a stream
+    // containing one must be replayed as it is
+    public static boolean dependsOnHistory(int op) {
+        return op == Opcodes.UNDO || op == Opcodes.REDO || op == Opcodes.LOAD;
+    }
+
+    // ========================== Input ============================
+
+    // Compiles and adds one line; false if it does not compile (it is dropped)
+    public boolean add(CharSequence line) {
+        if (!CommandCompiler.compile(line, in)) {
+            commandsIn++;
+            invalid++;
+            return false;
+        }
+        add(in, line);
+        return true;
+    }
+
+    // Adds a compiled command; text is how it was written
+    public void add(Instruction command, CharSequence text) {
+        commandsIn++;
+        int op = command.op;
+        if (op == Opcodes.INVALID || CommandCompiler.checkArgs(command) != null) {
+            invalid++;
+            return;
+        }
+        opsIn[op]++;
+        if (anchored && held.size() >= MAX_HELD && windowEmpty()) {
+            release();
+            anchor(false);
+        }
+
+        int a = command.args[0];
+        switch (op) {
+            case Opcodes.LEFT:
+                addTurn(-Math.floorMod(a, 360));
+                break;
+            case Opcodes.RIGHT:
+                addTurn(a);
+                break;
+            case Opcodes.MOVE:
+            case Opcodes.REVERSE:
+                addMove(op, a, text);
+                break;
+
+            case Opcodes.PENUP:
+                pendingPen = UP;
+                break;
+            case Opcodes.PENDOWN:
+                pendingPen = DOWN;
+                break;
+            case Opcodes.BLUE:
+                setColour(op, text, 0xFF0000FF);
+                break;
+            case Opcodes.RED:
+                setColour(op, text, 0xFFFF0000);
+                break;
+            case Opcodes.GREEN:
+                setColour(op, text, 0xFF00FF00);
+                break;
+            case Opcodes.WHITE:
+                setColour(op, text, 0xFFFFFFFF);
+                break;
+            case Opcodes.PENCOLOR:
+            case Opcodes.PEN:
+                setColour(op, text, 0xFF000000 | a << 16 | command.args[1] << 8 | command.args[2]);
+                break;
+            case Opcodes.PENWIDTH:
+                pendingStroke = new Held(op, text.toString());
+                pendingStrokeValue = a;
+                break;
+
+            case Opcodes.SQUARE:
+            case Opcodes.EQUILATERAL:
+            case Opcodes.TRIANGLE:
+                flushWindow(true);  // They put the pen down themselves
+                if (headed) turtle.shape(op, a, command.args[1], command.args[2]);
+                else placed = false;
+                pen = DOWN;
+                draw(op, text);
+                break;
+            case Opcodes.CIRCLE:
+                flushWindow(false);
+                draw(op, text);
+                break;
+
+            case Opcodes.RESET:
+                stepCount = 0;  // Wherever the pending moves and turns left the turtle, it goes home
+                flushWindow(false);
+                release();
+                emit(op, text.toString());
+                turtle.reset();
+                placed = headed = predictPositions;
+                pen = UNKNOWN;  // LBUGraphics may reset these too
+                colourKnown = strokeKnown = false;
+                anchor(false);
+                break;
+            case Opcodes.CLEAR:
+                flushWindow(false);
+                clear(text);
+                break;
+
+            case Opcodes.HELP:
+            case Opcodes.STATS:
+                break;  // Dialogs only
+
+            default:
+                // about, name, nepal, save, load, screenshot, image, undo, redo, recording:
+                // passed on as they are, and nothing is known about the turtle afterwards
+                flushWindow(false);
+                release();
+                emit(op, text.toString());
+                placed = headed = false;
+                pen = UNKNOWN;
+                colourKnown = strokeKnown = false;
+                break;
+        }
+    }
+
+    // Passes on what is still pending; call after the last add
+    public void finish() {
+        flushWindow(false);
+        release();
+    }
+
+    // Next optimized command, or null if none is ready yet
+    public String poll() {
+        return ready.poll();
+    }
+
+    // ========================== Pending Window ============================
+
+    private boolean windowEmpty() {
+        return stepCount == 0 && pendingPen == UNKNOWN && pendingColour == null && pendingStroke == null;
+    }
+
+    private void addTurn(int clockwise) {
+        int degrees = Math.floorMod(clockwise, 360);
+        if (degrees == 0) return;
+        if (stepCount == 0) openWindow();
+        if (headed) turtle.turn(degrees);
+        if (stepCount > 0 && steps[stepCount - 2] == TURN) {
+            int merged = (steps[stepCount - 1] + degrees) % 360;
+            if (merged == 0) stepCount -= 2;  // Cancelled out
+            else steps[stepCount - 1] = merged;
+            return;
+        }
+        appendStep(TURN, degrees);
+    }
+
+    private void addMove(int op, int distance, CharSequence text) {
+        int sign = op == Opcodes.REVERSE ? -1 : 1;
+        int penNow = pendingPen != UNKNOWN ? pendingPen : pen;
+        if (penNow == UP) {
+            if (distance == 0) return;  // Draws nothing, goes nowhere
+            if (stepCount == 0) openWindow();
+            if (placed && headed && !turtle.move(distance, sign)) {
+                // Predicted to leave the canvas, so execute should refuse it; it is passed
+                // on all the same rather than trusting the prediction
+                flushWindow(false);
+                emit(op, text.toString());
+                placed = false;
+                return;
+            }
+            if (!headed) placed = false;
+            appendStep(MOVE, distance * sign);
+            return;
+        }
+
+        // The pen is down, or may be
+        flushWindow(false);
+        if (!placed || !headed || !turtle.move(distance, sign)) placed = false;  // Unknown, or predicted refused
+        draw(op, text);
+    }
+
+    private void setColour(int op, CharSequence text, int argb) {
+        pendingColour = new Held(op, text.toString());
+        pendingColourValue = argb;
+    }
+
+    private void openWindow() {
+        windowPlaced = placed;
+        windowHeaded = headed;
+        windowX = turtle.x;
+        windowY = turtle.y;
+        windowDirection = turtle.direction;
+    }
+
+    private void appendStep(int kind, int value) {
+        if (stepCount == steps.length) steps = Arrays.copyOf(steps, steps.length * 2);
+        steps[stepCount++] = kind;
+        steps[stepCount++] = value;
+    }
+
+    // Passes on the pending window as the fewest commands: the steps with turns merged,
+    // or a jump when the turtle's position was known. penOverridden: the next command puts
+    // the pen down anyway.
+    private void flushWindow(boolean penOverridden) {
+        boolean moved = false;
+        if (stepCount > 0) {
+            List<Held> path = new ArrayList<>();
+            for (int i = 0; i < stepCount; i += 2) {
+                int value = steps[i + 1];
+                if (steps[i] == TURN) path.add(turn(value));
+                else path.add(value >= 0 ? new Held(Opcodes.MOVE, "move " + value) : new Held(Opcodes.REVERSE, "reverse " + -value));
+            }
+            if (windowPlaced && windowHeaded) {
+                List<Held> jump = jump(windowX, windowY, windowDirection, turtle.x, turtle.y, turtle.direction);
+                if (jump != null && jump.size() < path.size()) path = jump;
+            }
+            for (Held h : path) moved |= h.op == Opcodes.MOVE || h.op == Opcodes.REVERSE;
+            if (moved && pen != UP) emit(PENUP);
+            for (Held h : path) emit(h);
+            stepCount = 0;
+        }
+
+        int current = moved ? UP : pen;
+        int wanted = pendingPen != UNKNOWN ? pendingPen : current;
+        if (!penOverridden && wanted != UNKNOWN && wanted != current) emit(wanted == UP ? PENUP : PENDOWN);
+        pen = wanted;
+        pendingPen = UNKNOWN;
+
+        if (pendingColour != null) {
+            if (!colourKnown || colour != pendingColourValue) {
+                emit(pendingColour);
+                colourSet = pendingColour;
+                colourKnown = true;
+                colour = pendingColourValue;
+            }
+            pendingColour = null;
+        }
+        if (pendingStroke != null) {
+            if (!strokeKnown || stroke != pendingStrokeValue) {
+                emit(pendingStroke);
+                strokeSet = pendingStroke;
+                strokeKnown = true;
+                stroke = pendingStrokeValue;
+            }
+            pendingStroke = null;
+        }
+    }
+
+    // ========================== Jumps ============================
+
+    // Pen-up commands that take the turtle from (x0, y0) facing d0 to (x1, y1) facing d1:
+    // at most one move along each axis, horizontal or vertical first, whichever is shorter.
+    // Null if no such path stays on the canvas and lands exactly on (x1, y1).
+    private List<Held> jump(int x0, int y0, int d0, int x1, int y1, int d1) {
+        List<Held> best = null;
+        for (int order = 0; order < 2; order++) {
+            List<Held> path = new ArrayList<>();
+            TurtleModel t = new TurtleModel(width, height, x0, y0, d0);
+            boolean onCanvas = true;
+            for (int leg = 0; leg < 2 && onCanvas; leg++) {
+                boolean horizontal = (leg == 0) == (order == 0);
+                int delta = horizontal ? x1 - t.x : y1 - t.y;
+                if (delta == 0) continue;
+                // Heading 90 moves along +x, 270 along -x, 0 along +y and 180 along -y
+                turnTo(t, horizontal ? (delta > 0 ? 90 : 270) : (delta > 0 ? 0 : 180), path);
+                onCanvas = t.move(Math.abs(delta), 1);
+                path.add(new Held(Opcodes.MOVE, "move " + Math.abs(delta)));
+            }
+            turnTo(t, d1, path);
+            if (onCanvas && t.x == x1 && t.y == y1 && (best == null || path.size() < best.size())) best = path;
+        }
+        return best;
+    }
+
+    private static void turnTo(TurtleModel t, int direction, List<Held> path) {
+        int clockwise = Math.floorMod(direction - t.direction, 360);
+        if (clockwise == 0) return;
+        path.add(turn(clockwise));
+        t.turn(clockwise);
+    }
+
+    // The shorter of right or left for a clockwise turn of 1 to 359 degrees
+    private static Held turn(int clockwise) {
+        return clockwise <= 180 ? new Held(Opcodes.RIGHT, "right " + clockwise)
+                : new Held(Opcodes.LEFT, "left " + (360 - clockwise));
+    }
+
+    // ========================== Clear ============================
+
+    private void clear(CharSequence text) {
+        if (dropBeforeClear && anchored && placed && headed) {
+            List<Held> restore = restoration();
+            if (restore != null && restore.size() <= held.size()) {
+                held.clear();
+                held.addAll(restore);
+                drawnSinceAnchor = false;
+            }
+            if (anchorCleared && !drawnSinceAnchor) {
+                release();  // Nothing drawn since the last clear: the canvas is still clear
+                anchor(true);
+                return;
+            }
+        }
+        emit(Opcodes.CLEAR, text.toString());
+        release();
+        anchor(true);
+    }
+
+    // Commands that take the turtle from where it was at the anchor to where it is now
+    // without drawing; null if that cannot be done exactly
+    private List<Held> restoration() {
+        List<Held> restore = new ArrayList<>();
+        if (turtle.x != anchorX || turtle.y != anchorY) {
+            if (pen == UNKNOWN) return null;  // The jump needs the pen up, and it could not be put back
+            List<Held> jump = jump(anchorX, anchorY, anchorDirection, turtle.x, turtle.y, turtle.direction);
+            if (jump == null) return null;
+            if (anchorPen != UP) restore.add(PENUP);
+            restore.addAll(jump);
+            if (pen == DOWN) restore.add(PENDOWN);
+        } else {
+            turnTo(new TurtleModel(width, height, anchorX, anchorY, anchorDirection), turtle.direction, restore);
+            if (pen != UNKNOWN && pen != anchorPen) restore.add(pen == UP ? PENUP : PENDOWN);
+        }
+        if (colourSet != null) restore.add(colourSet);
+        if (strokeSet != null) restore.add(strokeSet);
+        return restore;
+    }
+
+    // Marks the current point as the anchor if the turtle's position is known and drawing
+    // before a clear may be dropped
+    private void anchor(boolean cleared) {
+        anchored = dropBeforeClear && placed && headed;
+        anchorCleared = cleared;
+        drawnSinceAnchor = false;
+        anchorX = turtle.x;
+        anchorY = turtle.y;
+        anchorDirection = turtle.direction;
+        anchorPen = pen;
+        colourSet = strokeSet = null;
+    }
+
+    // ========================== Output ============================
+
+    private void draw(int op, CharSequence text) {
+        emit(op, text.toString());
+        drawnSinceAnchor = true;
+    }
+
+    private void emit(int op, String text) {
+        emit(new Held(op, text));
+    }
+
+    private void emit(Held command) {
+        if (anchored) held.add(command);
+        else send(command);
+    }
+
+    // Lets out everything held back and drops the anchor
+    private void release() {
+        for (Held h : held) send(h);
+        held.clear();
+        anchored = false;
+    }
+
+    private void send(Held command) {
+        ready.add(command.text);
+        opsOut[command.op]++;
+        commandsOut++;
+    }
+
+    // ========================== Report ============================
+
+    public long getCommandsIn() {
+        return commandsIn;
+    }
+
+    public long getCommandsOut() {
+        return commandsOut;
+    }
+
+    // Replay time saved, from the average time each kind of command has taken so far
+    public long estimatedSavingNanos(CommandStats stats) {
+        long nanos = invalid * stats.getMeanNanos(Opcodes.INVALID);
+        for (int op = 0; op < opsIn.length; op++) nanos += (opsIn[op] - opsOut[op]) * stats.getMeanNanos(op);
+        return nanos;
+    }
+
+    // E.g. "1200 -> 310 commands (74% fewer): -640 move, -200 left, -50 penup"
+    public String summary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(commandsIn).append(" -> ").append(commandsOut).append(" commands (")
+                .append(commandsIn == 0 ? 0 : Math.round(100.0 * (commandsIn - commandsOut) / commandsIn)).append("% fewer)");
+        String separator = ": ";
+        for (int op = 0; op < opsIn.length; op++) {
+            long change = opsOut[op] - opsIn[op];
+            if (change == 0) continue;
+            sb.append(separator).append(change > 0 ? "+" : "").append(change).append(' ').append(Opcodes.name(op));
+            separator = ", ";
+        }
+        if (invalid > 0) sb.append(separator).append(-invalid).append(" invalid");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,316 @@
+package ooops;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Loopback TCP server that lets several local tools drive one canvas. Each client is
+// served on its own (virtual, where available) thread and sends one command per line:
+//
+//     <command>          queued, no reply
+//     batch <n>          the next n lines are queued together and run as one batch
+//     sync               waits for this client's queued commands, then replies
+//                        "ok <applied> <errors>" and one "error <line>: <message>" per error
+//     stats              replies with this client's counters
+//     quit               closes the connection
+//
+// Clients only enqueue. All commands go through one lock-free queue to a single render
+// thread that hands them, in arrival order, to the canvas's execution thread. A semaphore
+// limits how many commands may be queued; clients block on it when the canvas falls
+// behind (back-pressure).
+public class CommandServer implements Closeable {
+
+    public static final int DEFAULT_PORT = 7777;
+    public static final int DEFAULT_MAX_QUEUED = 4096;
+    private static final int MAX_BATCH = 100_000;
+    private static final int DRAIN = 64;  // Requests applied per hop to the execution thread
+
+    // One connection and its counters
+    public static final class Client {
+        private final int id;
+        private final long connectedAt = System.nanoTime();
+        private final AtomicLong received = new AtomicLong();
+        private final AtomicLong applied = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong blockedNanos = new AtomicLong();  // Waiting for queue space
+        private final AtomicLong queuedNanos = new AtomicLong();   // Waiting in the queue
+        private final List<String> errors = new ArrayList<>();     // Since the last sync; guarded by itself
+        private volatile CompletableFuture<Void> last = CompletableFuture.completedFuture(null);
+
+        Client(int id) {
+            this.id = id;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public long getReceived() {
+            return received.get();
+        }
+
+        public long getApplied() {
+            return applied.get();
+        }
+
+        public long getFailed() {
+            return failed.get();
+        }
+
+        public long getBlockedNanos() {
+            return blockedNanos.get();
+        }
+
+        // Applied commands per second since the client connected
+        public double getThroughput() {
+            double seconds = (System.nanoTime() - connectedAt) / 1e9;
+            return seconds > 0 ? applied.get() / seconds : 0;
+        }
+
+        String format() {
+            long n = Math.max(1, applied.get());
+            return String.format("client %d: received %d, applied %d, errors %d, %.0f commands/s, "
+                    + "blocked %.1f ms, mean queue wait %.1f us", id, received.get(), applied.get(), failed.get(),
+                    getThroughput(), blockedNanos.get() / 1e6, queuedNanos.get() / 1e3 / n);
+        }
+
+        private void addError(long line, String message) {
+            failed.incrementAndGet();
+            synchronized (errors) {
+                errors.add("error " + line + ": " + message);
+            }
+        }
+
+        private List<String> takeErrors() {
+            synchronized (errors) {
+                List<String> taken = new ArrayList<>(errors);
+                errors.clear();
+                return taken;
+            }
+        }
+    }
+
+    // Commands of one line or batch waiting for the render thread
+    private static final class Request {
+        final Client client;
+        final String[] commands;
+        final long firstLine;
+        final int permits;
+        final long queuedAt = System.nanoTime();
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Request(Client client, String[] commands, long firstLine, int permits) {
+            this.client = client;
+            this.commands = commands;
+            this.firstLine = firstLine;
+            this.permits = permits;
+        }
+    }
+
+    private final GraphicsSystem system;
+    private final int port;
+    private final int maxQueued;
+    private final Semaphore space;
+    private final ConcurrentLinkedQueue<Request> queue = new ConcurrentLinkedQueue<>();
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+    private final ExecutorService clientThreads = newClientExecutor();
+
+    private ServerSocket serverSocket;
+    private Thread renderThread;
+    private volatile boolean running;
+    private int nextClientId;
+
+    public CommandServer(GraphicsSystem system, int port, int maxQueued) {
+        this.system = system;
+        this.port = port;
+        this.maxQueued = Math.max(1, maxQueued);
+        this.space = new Semaphore(this.maxQueued);
+    }
+
+    // Binds to the loopback address only and starts accepting clients
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        running = true;
+
+        renderThread = new Thread(this::renderLoop, "command-render");
+        renderThread.setDaemon(true);
+        renderThread.start();
+
+        Thread acceptThread = new Thread(this::acceptLoop, "command-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        System.out.println("Command server listening on " + serverSocket.getLocalSocketAddress());
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public List<Client> getClients() {
+        return new ArrayList<>(clients);
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverSocket.close();
+        clientThreads.shutdownNow();
+        LockSupport.unpark(renderThread);
+    }
+
+    // One virtual thread per client on Java 21+, a cached pool of platform threads before
+    private static ExecutorService newClientExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "command-client");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    // ========================== Clients ============================
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                Client client = new Client(++nextClientId);
+                clients.add(client);
+                clientThreads.execute(() -> serve(socket, client));
+            } catch (SocketException e) {
+                return;  // Server closed
+            } catch (IOException e) {
+                System.err.println("Command server: " + e.getMessage());
+            } catch (RejectedExecutionException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket, Client client) {
+        try (socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true)) {
+            long lineNumber = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                String trimmed = line.trim();
+
+                if (trimmed.equals("quit")) {
+                    break;
+                } else if (trimmed.equals("sync")) {
+                    client.last.join();
+                    List<String> errors = client.takeErrors();
+                    out.println("ok " + client.applied.get() + " " + errors.size());
+                    for (String error : errors) out.println(error);
+                } else if (trimmed.equals("stats")) {
+                    out.println(client.format());
+                } else if (trimmed.startsWith("batch ")) {
+                    int count = parseBatchSize(trimmed);
+                    if (count < 0) {
+                        client.addError(lineNumber, "Invalid batch size.");
+                        continue;
+                    }
+                    String[] commands = new String[count];
+                    long first = lineNumber + 1;
+                    for (int i = 0; i < count; i++) {
+                        commands[i] = in.readLine();
+                        if (commands[i] == null) return;  // Disconnected part-way; drop the batch
+                        lineNumber++;
+                    }
+                    submit(client, commands, first);
+                } else if (!trimmed.isEmpty()) {
+                    submit(client, new String[] {line}, lineNumber);
+                }
+            }
+        } catch (IOException e) {
+            // Client went away
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            clients.remove(client);
+        }
+    }
+
+    private static int parseBatchSize(String line) {
+        try {
+            int count = Integer.parseInt(line.substring(6).trim());
+            return count >= 0 && count <= MAX_BATCH ? count : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Queues commands for the render thread, blocking while the queue is full
+    private void submit(Client client, String[] commands, long firstLine) throws InterruptedException {
+        int permits = Math.min(commands.length, maxQueued);
+        long start = System.nanoTime();
+        space.acquire(permits);
+        client.blockedNanos.addAndGet(System.nanoTime() - start);
+        client.received.addAndGet(commands.length);
+
+        Request request = new Request(client, commands, firstLine, permits);
+        client.last = request.done;
+        queue.offer(request);
+        LockSupport.unpark(renderThread);
+    }
+
+    // ========================== Rendering ============================
+
+    private void renderLoop() {
+        List<Request> drained = new ArrayList<>(DRAIN);
+        while (running) {
+            Request request;
+            while (drained.size() < DRAIN && (request = queue.poll()) != null) drained.add(request);
+            if (drained.isEmpty()) {
+                LockSupport.park(this);  // Woken by submit; spurious wake-ups just loop
+                continue;
+            }
+
+            try {
+                system.runAndWait(() -> applyAll(drained));  // Typed commands run on the same thread
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                System.err.println("Command server: " + e.getMessage());
+            } finally {
+                for (Request r : drained) {
+                    space.release(r.permits);
+                    r.done.complete(null);
+                }
+                drained.clear();
+            }
+        }
+    }
+
+    private void applyAll(List<Request> requests) {
+        system.beginBatch();
+        try {
+            for (Request request : requests) {
+                Client client = request.client;
+                client.queuedNanos.addAndGet(System.nanoTime() - request.queuedAt);
+                for (int i = 0; i < request.commands.length; i++) {
+                    String error = system.processCaptured(request.commands[i]);
+                    if (error != null) client.addError(request.firstLine + i, error);
+                    client.applied.incrementAndGet();
+                }
+            }
+        } finally {
+            system.endBatch();
+        }
+    }
+}
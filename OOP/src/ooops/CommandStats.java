@@ -0,0 +1,193 @@
+package ooops;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Call counts, error counts and latency histograms for every command keyword, plus the
+// time spent in each phase of command processing. Recording is lock-free and allocates
+// nothing: every histogram is a row of power-of-two nanosecond buckets in one
+// AtomicLongArray, so commands and the paint thread can record concurrently.
+public class CommandStats implements CommandStatsMXBean {
+
+    // Phases a command's time is split into
+    public static final int PARSE = 0;    // Compiling the text into an Instruction
+    public static final int DRAW = 1;     // Running it, minus the journal and dialogs
+    public static final int REPAINT = 2;  // paintComponent on the event thread
+    public static final int IO = 3;       // Journal appends and flushes (logCommand, saveAuto)
+    public static final int DIALOG = 4;   // Waiting for a modal message dialog
+    private static final String[] PHASE_NAMES = {"parse", "draw", "repaint", "io", "dialog"};
+
+    private static final int BUCKETS = 64;  // Bucket b counts durations in [2^(b-1), 2^b) ns
+
+    private final int commandRows = Opcodes.count() + 1;  // Last row: invalid commands
+    private final AtomicLongArray calls = new AtomicLongArray(commandRows);
+    private final AtomicLongArray errors = new AtomicLongArray(commandRows);
+    private final AtomicLongArray commandTotals = new AtomicLongArray(commandRows);
+    private final AtomicLongArray commandHistograms = new AtomicLongArray(commandRows * BUCKETS);
+
+    private final AtomicLongArray phaseCounts = new AtomicLongArray(PHASE_NAMES.length);
+    private final AtomicLongArray phaseTotals = new AtomicLongArray(PHASE_NAMES.length);
+    private final AtomicLongArray phaseHistograms = new AtomicLongArray(PHASE_NAMES.length * BUCKETS);
+
+    // ========================== Recording ============================
+
+    // One executed command; op may be Opcodes.INVALID
+    public void recordCommand(int op, long nanos, boolean failed) {
+        int row = row(op);
+        calls.incrementAndGet(row);
+        if (failed) errors.incrementAndGet(row);
+        commandTotals.addAndGet(row, nanos);
+        commandHistograms.incrementAndGet(row * BUCKETS + bucket(nanos));
+    }
+
+    public void recordPhase(int phase, long nanos) {
+        phaseCounts.incrementAndGet(phase);
+        phaseTotals.addAndGet(phase, nanos);
+        phaseHistograms.incrementAndGet(phase * BUCKETS + bucket(nanos));
+    }
+
+    private int row(int op) {
+        return op == Opcodes.INVALID ? commandRows - 1 : op;
+    }
+
+    private static int bucket(long nanos) {
+        return nanos <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+    }
+
+    // ========================== Reading ============================
+
+    public long getCalls(int op) {
+        return calls.get(row(op));
+    }
+
+    public long getErrors(int op) {
+        return errors.get(row(op));
+    }
+
+    // Average time of one call of op so far, in ns; 0 if it has not run
+    public long getMeanNanos(int op) {
+        long n = calls.get(row(op));
+        return n == 0 ? 0 : commandTotals.get(row(op)) / n;
+    }
+
+    // Upper bound of the bucket holding the given fraction (0..1) of a command's calls, in ns
+    public long commandPercentile(int op, double fraction) {
+        return percentile(commandHistograms, row(op), fraction);
+    }
+
+    public long phasePercentile(int phase, double fraction) {
+        return percentile(phaseHistograms, phase, fraction);
+    }
+
+    public long getPhaseNanos(int phase) {
+        return phaseTotals.get(phase);
+    }
+
+    private static long percentile(AtomicLongArray histograms, int row, double fraction) {
+        long total = 0;
+        for (int b = 0; b < BUCKETS; b++) total += histograms.get(row * BUCKETS + b);
+        if (total == 0) return 0;
+
+        long target = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += histograms.get(row * BUCKETS + b);
+            if (seen >= target) return b == 0 ? 0 : b >= 63 ? Long.MAX_VALUE : 1L << b;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private String commandName(int row) {
+        return row == commandRows - 1 ? "(invalid)" : Opcodes.name(row);
+    }
+
+    // Text table for the stats command
+    public String format() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-12s %8s %6s %10s %10s %10s%n", "command", "calls", "errors", "mean", "p50", "p99"));
+        for (int row = 0; row < commandRows; row++) {
+            long n = calls.get(row);
+            if (n == 0) continue;
+            sb.append(String.format("%-12s %8d %6d %10s %10s %10s%n", commandName(row), n, errors.get(row),
+                    duration(commandTotals.get(row) / n),
+                    duration(percentile(commandHistograms, row, 0.5)),
+                    duration(percentile(commandHistograms, row, 0.99))));
+        }
+
+        sb.append(String.format("%n%-12s %8s %10s %10s %10s%n", "phase", "count", "total", "p50", "p99"));
+        for (int phase = 0; phase < PHASE_NAMES.length; phase++) {
+            sb.append(String.format("%-12s %8d %10s %10s %10s%n", PHASE_NAMES[phase], phaseCounts.get(phase),
+                    duration(phaseTotals.get(phase)),
+                    duration(percentile(phaseHistograms, phase, 0.5)),
+                    duration(percentile(phaseHistograms, phase, 0.99))));
+        }
+        return sb.toString();
+    }
+
+    private static String duration(long nanos) {
+        if (nanos == Long.MAX_VALUE) return "max";
+        if (nanos < 10_000) return nanos + " ns";
+        if (nanos < 10_000_000) return nanos / 1_000 + " us";
+        return nanos / 1_000_000 + " ms";
+    }
+
+    // ========================== JMX ============================
+
+    @Override
+    public Map<String, Long> getCommandCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (int row = 0; row < commandRows; row++) {
+            if (calls.get(row) > 0) counts.put(commandName(row), calls.get(row));
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getErrorCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (int row = 0; row < commandRows; row++) {
+            if (errors.get(row) > 0) counts.put(commandName(row), errors.get(row));
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getCommandP99Micros() {
+        Map<String, Long> p99 = new LinkedHashMap<>();
+        for (int row = 0; row < commandRows; row++) {
+            if (calls.get(row) > 0) p99.put(commandName(row), percentile(commandHistograms, row, 0.99) / 1_000);
+        }
+        return p99;
+    }
+
+    @Override
+    public Map<String, Long> getPhaseMillis() {
+        Map<String, Long> millis = new LinkedHashMap<>();
+        for (int phase = 0; phase < PHASE_NAMES.length; phase++) {
+            millis.put(PHASE_NAMES[phase], phaseTotals.get(phase) / 1_000_000);
+        }
+        return millis;
+    }
+
+    @Override
+    public String getReport() {
+        return format();
+    }
+
+    // Not atomic with respect to concurrent recording; a few samples may survive a reset
+    @Override
+    public void reset() {
+        for (int i = 0; i < calls.length(); i++) {
+            calls.set(i, 0);
+            errors.set(i, 0);
+            commandTotals.set(i, 0);
+        }
+        for (int i = 0; i < commandHistograms.length(); i++) commandHistograms.set(i, 0);
+        for (int i = 0; i < phaseCounts.length(); i++) {
+            phaseCounts.set(i, 0);
+            phaseTotals.set(i, 0);
+        }
+        for (int i = 0; i < phaseHistograms.length(); i++) phaseHistograms.set(i, 0);
+    }
+}
@@ -0,0 +1,19 @@
+package ooops;
+
+import java.util.Map;
+
+// Management view of CommandStats, registered as ooops:type=CommandStats
+public interface CommandStatsMXBean {
+
+    Map<String, Long> getCommandCounts();
+
+    Map<String, Long> getErrorCounts();
+
+    Map<String, Long> getCommandP99Micros();
+
+    Map<String, Long> getPhaseMillis();
+
+    String getReport();
+
+    void reset();
+}
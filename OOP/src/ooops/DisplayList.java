@@ -0,0 +1,260 @@
+package ooops;
+
+import java.awt.*;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+// Retained record of everything drawn on the canvas, kept in packed primitive arrays
+// (about 25 bytes per primitive) so it can be re-rasterized at any scale or region
+// without replaying the command history.
+public class DisplayList {
+
+    public static final byte LINE = 0;     // x1, y1, x2, y2
+    public static final byte CIRCLE = 1;   // centre x, centre y, radius, unused
+    public static final byte FILL = 2;     // x, y, width, height
+
+    private byte[] kinds = new byte[1024];
+    private float[] coords = new float[1024 * 4];
+    private float[] widths = new float[1024];
+    private int[] colours = new int[1024];
+    private int size;
+    private int generation;            // Bumped on every clear, so stale sizes can be detected
+    private int resets;                // Bumped on every clear or truncate, for indexes built on the list
+
+    private BufferedImage background;  // Loaded image the primitives are drawn over, if any
+
+    // ========================== Recording ============================
+
+    public void addLine(float x1, float y1, float x2, float y2, float width, int argb) {
+        add(LINE, x1, y1, x2, y2, width, argb);
+    }
+
+    public void addCircle(float cx, float cy, float radius, float width, int argb) {
+        add(CIRCLE, cx, cy, radius, 0, width, argb);
+    }
+
+    public void addFill(float x, float y, float w, float h, int argb) {
+        add(FILL, x, y, w, h, 0, argb);
+    }
+
+    private void add(byte kind, float a, float b, float c, float d, float width, int argb) {
+        if (size == kinds.length) grow();
+        int i = size++;
+        kinds[i] = kind;
+        coords[i * 4] = a;
+        coords[i * 4 + 1] = b;
+        coords[i * 4 + 2] = c;
+        coords[i * 4 + 3] = d;
+        widths[i] = width;
+        colours[i] = argb;
+    }
+
+    private void grow() {
+        int capacity = kinds.length * 2;
+        kinds = Arrays.copyOf(kinds, capacity);
+        coords = Arrays.copyOf(coords, capacity * 4);
+        widths = Arrays.copyOf(widths, capacity);
+        colours = Arrays.copyOf(colours, capacity);
+    }
+
+    // Drops everything, e.g. when the canvas is cleared
+    public void clear() {
+        size = 0;
+        background = null;
+        generation++;
+        resets++;
+    }
+
+    // Image that was loaded onto the canvas; earlier primitives are covered by it
+    public void setBackground(BufferedImage image) {
+        clear();
+        background = image;
+    }
+
+    // Forgets primitives from index newSize onwards
+    public void truncate(int newSize) {
+        size = Math.min(size, Math.max(0, newSize));
+        resets++;
+    }
+
+    // ========================== Access ============================
+
+    public int size() {
+        return size;
+    }
+
+    public int generation() {
+        return generation;
+    }
+
+    // Approximate heap held by the primitive arrays and the background image
+    public long estimatedBytes() {
+        long bytes = kinds.length + 4L * (coords.length + widths.length + colours.length);
+        if (background != null) bytes += 4L * background.getWidth() * background.getHeight();
+        return bytes;
+    }
+
+    public int resets() {
+        return resets;
+    }
+
+    public byte kind(int i) {
+        return kinds[i];
+    }
+
+    public float coord(int i, int k) {
+        return coords[i * 4 + k];
+    }
+
+    public float width(int i) {
+        return widths[i];
+    }
+
+    public int colour(int i) {
+        return colours[i];
+    }
+
+    public BufferedImage getBackground() {
+        return background;
+    }
+
+    // Bounding box of primitive i including half its stroke width
+    public Rectangle bounds(int i) {
+        float a = coords[i * 4], b = coords[i * 4 + 1], c = coords[i * 4 + 2], d = coords[i * 4 + 3];
+        float pad = widths[i] / 2 + 1;
+        switch (kinds[i]) {
+            case LINE:
+                return outer(Math.min(a, c) - pad, Math.min(b, d) - pad, Math.max(a, c) + pad, Math.max(b, d) + pad);
+            case CIRCLE:
+                return outer(a - c - pad, b - c - pad, a + c + pad, b + c + pad);
+            default:
+                return outer(a, b, a + c, b + d);
+        }
+    }
+
+    private static Rectangle outer(float x1, float y1, float x2, float y2) {
+        int x = (int) Math.floor(x1), y = (int) Math.floor(y1);
+        return new Rectangle(x, y, (int) Math.ceil(x2) - x, (int) Math.ceil(y2) - y);
+    }
+
+    // ========================== Rendering ============================
+
+    // Draws the primitives intersecting region (canvas coordinates) into g, scaled by
+    // scale, with the region's top-left corner at g's origin
+    public void render(Graphics2D g, double scale, Rectangle region) {
+        render(g, scale, region, 0, size);
+    }
+
+    public void render(Graphics2D g, double scale, Rectangle region, int from, int to) {
+        Graphics2D g2 = (Graphics2D) g.create();
+        try {
+            g2.scale(scale, scale);
+            g2.translate(-region.x, -region.y);
+            g2.clip(region);
+            drawRegion(g2, region, from, to);
+        } finally {
+            g2.dispose();
+        }
+    }
+
+    // Draws primitives [from, to) that intersect cull (canvas coordinates) using g's
+    // current transform and clip
+    public void drawRegion(Graphics2D g, Rectangle cull, int from, int to) {
+        if (background != null && from == 0) g.drawImage(background, 0, 0, null);
+
+        Line2D.Float line = new Line2D.Float();
+        Ellipse2D.Float oval = new Ellipse2D.Float();
+        for (int i = from; i < to; i++) {
+            if (!intersects(i, cull)) continue;
+            draw(g, i, line, oval);
+        }
+    }
+
+    // Draws only the listed primitives (e.g. from a SegmentGrid query), clipped to region
+    public void render(Graphics2D g, double scale, Rectangle region, int[] ids, int count) {
+        Graphics2D g2 = (Graphics2D) g.create();
+        try {
+            g2.scale(scale, scale);
+            g2.translate(-region.x, -region.y);
+            g2.clip(region);
+            drawIds(g2, ids, count);
+        } finally {
+            g2.dispose();
+        }
+    }
+
+    // Draws the listed primitives with g's current transform and clip
+    public void drawIds(Graphics2D g, int[] ids, int count) {
+        if (background != null) g.drawImage(background, 0, 0, null);
+
+        Line2D.Float line = new Line2D.Float();
+        Ellipse2D.Float oval = new Ellipse2D.Float();
+        for (int k = 0; k < count; k++) {
+            draw(g, ids[k], line, oval);
+        }
+    }
+
+    // Draws a single primitive; line and oval are scratch shapes to avoid allocation
+    void draw(Graphics2D g, int i, Line2D.Float line, Ellipse2D.Float oval) {
+        int o = i * 4;
+        // Only create paint objects when they change; runs of one colour and width are the norm
+        if (g.getColor().getRGB() != colours[i]) g.setColor(new Color(colours[i], true));
+        if (kinds[i] != FILL) {
+            Stroke stroke = g.getStroke();
+            if (!(stroke instanceof BasicStroke) || ((BasicStroke) stroke).getLineWidth() != widths[i]) {
+                g.setStroke(new BasicStroke(widths[i]));
+            }
+        }
+        switch (kinds[i]) {
+            case LINE:
+                line.setLine(coords[o], coords[o + 1], coords[o + 2], coords[o + 3]);
+                g.draw(line);
+                break;
+            case CIRCLE:
+                float r = coords[o + 2];
+                oval.setFrame(coords[o] - r, coords[o + 1] - r, 2 * r, 2 * r);
+                g.draw(oval);
+                break;
+            default:
+                g.fill(new Rectangle.Float(coords[o], coords[o + 1], coords[o + 2], coords[o + 3]));
+                break;
+        }
+    }
+
+    // Cheap bounding-box test against a region
+    boolean intersects(int i, Rectangle region) {
+        int o = i * 4;
+        float a = coords[o], b = coords[o + 1], c = coords[o + 2], d = coords[o + 3];
+        float pad = widths[i] / 2 + 1;
+        float minX, minY, maxX, maxY;
+        switch (kinds[i]) {
+            case LINE:
+                minX = Math.min(a, c) - pad; maxX = Math.max(a, c) + pad;
+                minY = Math.min(b, d) - pad; maxY = Math.max(b, d) + pad;
+                break;
+            case CIRCLE:
+                minX = a - c - pad; maxX = a + c + pad;
+                minY = b - c - pad; maxY = b + c + pad;
+                break;
+            default:
+                minX = a; maxX = a + c;
+                minY = b; maxY = b + d;
+                break;
+        }
+        return maxX >= region.x && minX <= region.x + region.width
+                && maxY >= region.y && minY <= region.y + region.height;
+    }
+
+    // Renders region into a new image scaled by scale
+    public BufferedImage rasterize(double scale, Rectangle region) {
+        int w = Math.max(1, (int) Math.ceil(region.width * scale));
+        int h = Math.max(1, (int) Math.ceil(region.height * scale));
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        render(g, scale, region);
+        g.dispose();
+        return image;
+    }
+}
@@ -3,31 +3,82 @@ package ooops;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.List;
-
-import javax.imageio.ImageIO;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.swing.*;
 import uk.ac.leedsbeckett.oop.LBUGraphics;
 
 public class GraphicsSystem extends LBUGraphics {
 
-    private ArrayList<String> commandParts;              // Stores parts of input command
-    private int commandLength;                           // Length of the command
-    private ArrayList<String> commandHistory = new ArrayList<>(); // Stores executed command history
-
-    // All supported commands
-    private final List<String> validCommands = Arrays.asList(
-        "move", "reverse", "left", "right", "penup", "pendown", "pencolor", "penwidth",
-        "square", "circle", "triangle", "equilateral", "reset", "clear",
-        "blue", "red", "green", "white", "pen", "about", "name", "save", "load",
-        "screenshot", "image", "help", "nepal"
-    );
+    private final CommandHistory commandHistory = new CommandHistory(); // Executed commands; older ones spill to disk
+    private final CommandJournal journal;                // Append-only auto-save log (null when headless)
+    private final boolean headless;                      // No window, dialogs or screen graphics
+    private int errorCount;                              // Errors reported since start-up
+    private final RepaintBatcher repaintBatcher = new RepaintBatcher(); // Merges repaints during replays
+    private final DisplayList displayList = new DisplayList();          // Retained copy of the drawing
+    private final ImageSaveService imageSaver = new ImageSaveService(2); // Encodes image saves off the caller's thread
+    private final UndoManager undoManager = new UndoManager(new UndoHost(), 50, 64L * 1024 * 1024); // Checkpointed undo/redo
+    private final ScriptCompiler scriptCompiler = new ScriptCompiler(); // repeat/to/make scripts; keeps procedures
+    private boolean replaying;                           // Re-running commands for undo: no history, no prompts
+    private SegmentGrid segmentGrid;                     // Spatial index over the display list, built on first use
+    private int strokeWidth = 1;                         // Current pen width, mirrored for the display list
+    private final CommandStats stats = new CommandStats();  // Per-command counts and latencies
+    private long excludedNanos;                          // Journal and dialog time, kept out of the draw phase
+    private int executeDepth;                            // Nesting of execute (load and undo run commands)
+    private boolean capturing;                           // Running a remote command: errors are returned, not shown
+    private String capturedError;                        // First error of the captured command
+    private boolean errorsPreviewed;                     // Loading a file whose errors the validator already listed
+    private final ExecutorService executor;              // Runs every command in the GUI (null when headless)
+    private volatile Thread executionThread;             // The executor's thread, which owns turtle and canvas
+    private final ReentrantLock canvasLock = new ReentrantLock(); // Held while a command draws, so paints see whole commands
+    private final ImageLoader imageLoader = new ImageLoader(64L * 1024 * 1024); // Subsampled, cached image decoding
+    private boolean progressiveImages = true;            // Show images on screen while they decode
+    private final int canvasWidth;                       // Drawing area as created; loaded images may be larger
+    private final int canvasHeight;
+    private boolean optimizeCommands = true;             // Run saved and replayed commands through CommandOptimizer
+    private AnimationRecorder recorder;                  // Captures frames while recording (null otherwise)
+    private static volatile Boolean turtleModelMatches;  // See turtleModelMatches(); null until checked
 
     // Constructor: Set up UI and menus
     public GraphicsSystem() {
+        this(false);
+    }
+
+    // Headless constructor: draws only to the off-screen image, so it also works
+    // under java.awt.headless=true (used by BatchRenderer)
+    public GraphicsSystem(boolean headless) {
+        this.headless = headless;
+        canvasWidth = getBufferedImage().getWidth();
+        canvasHeight = getBufferedImage().getHeight();
+        recordBackground();  // The display list starts with the empty canvas
+        if (headless) {
+            executor = null;
+            journal = null;
+            BufferedImage canvas = getBufferedImage();
+            setSize(canvas.getWidth(), canvas.getHeight());  // Not laid out by a frame, so size it to the canvas
+            return;
+        }
+
+        executor = Executors.newSingleThreadExecutor(r -> {
+            executionThread = new Thread(r, "command-executor");
+            executionThread.setDaemon(true);
+            return executionThread;
+        });
+        journal = new CommandJournal(new File("command_logs"));
         JFrame mainWindow = new JFrame("Graphics System");
         mainWindow.setLayout(new FlowLayout());
         mainWindow.add(this);
@@ -44,7 +95,7 @@ public class GraphicsSystem extends LBUGraphics {
         fileMenu.add(saveLogItem);
 
         JMenuItem saveItem = new JMenuItem("Save Commands");
-        saveItem.addActionListener(e -> saveCommands(commandHistory));
+        saveItem.addActionListener(e -> saveCommands(null));
         fileMenu.add(saveItem);
 
         JMenuItem loadItem = new JMenuItem("Load Commands");
@@ -52,12 +103,42 @@ public class GraphicsSystem extends LBUGraphics {
         fileMenu.add(loadItem);
 
         menuBar.add(fileMenu);
+
+        // Edit menu setup
+        JMenu editMenu = new JMenu("Edit");
+
+        JMenuItem undoItem = new JMenuItem("Undo");
+        undoItem.setAccelerator(KeyStroke.getKeyStroke("control Z"));
+        undoItem.addActionListener(e -> processCommand("undo"));
+        editMenu.add(undoItem);
+
+        JMenuItem redoItem = new JMenuItem("Redo");
+        redoItem.setAccelerator(KeyStroke.getKeyStroke("control Y"));
+        redoItem.addActionListener(e -> processCommand("redo"));
+        editMenu.add(redoItem);
+
+        menuBar.add(editMenu);
         mainWindow.setJMenuBar(menuBar);
         JTextArea commandArea = new JTextArea(10, 40); // height, width
         commandArea.setEditable(false);
         JScrollPane scrollPane = new JScrollPane(commandArea);
         mainWindow.add(scrollPane);  // Add it to the frame
 
+        // Expose the command statistics to JConsole and other JMX clients
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(stats, new ObjectName("ooops:type=CommandStats"));
+        } catch (JMException e) {
+            System.err.println("Could not register command statistics: " + e.getMessage());
+        }
+
+        // Make sure buffered journal records reach the disk on exit
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                System.err.println("Could not close command journal.");
+            }
+        }));
     }
 
     // ========================== Drawing Features ============================
@@ -93,12 +174,96 @@ public class GraphicsSystem extends LBUGraphics {
     }
 
     public void myName() {
-        Graphics g = getGraphics();
+        Graphics g = headless ? getGraphicsContext() : getGraphics();
         g.setColor(Color.RED);
         g.setFont(new Font("Arial", Font.BOLD, 50));
         g.drawString("OSKAR", 320, 390);
     }
 
+    // ========================== Display List Recording ============================
+
+    // Each drawing primitive of LBUGraphics is mirrored into the display list
+
+    @Override
+    public void forward(int distance) {
+        int startX = xPos, startY = yPos;
+        super.forward(distance);
+        if (displayList != null && getPenState()) {
+            displayList.addLine(startX, startY, xPos, yPos, strokeWidth, getPenColour().getRGB());
+        }
+    }
+
+    @Override
+    public void circle(int radius) {
+        super.circle(radius);
+        displayList.addCircle(xPos, yPos, radius, strokeWidth, getPenColour().getRGB());
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        if (displayList == null) return;
+        displayList.clear();
+        recordBackground();
+    }
+
+    // Records the freshly cleared canvas as a background fill
+    private void recordBackground() {
+        BufferedImage canvas = getBufferedImage();
+        displayList.addFill(0, 0, canvas.getWidth(), canvas.getHeight(), canvas.getRGB(0, 0));
+    }
+
+    @Override
+    public void setStroke(int width) {
+        super.setStroke(width);
+        strokeWidth = width;
+    }
+
+    @Override
+    public void setBufferedImage(BufferedImage image) {
+        super.setBufferedImage(image);
+        if (displayList == null) return;
+        displayList.setBackground(copyImage(image));  // Covers everything before; copied as the canvas keeps changing
+        undoManager.rebase();                         // Loaded images cannot be replayed
+    }
+
+    public DisplayList getDisplayList() {
+        return displayList;
+    }
+
+    // Re-rasterizes part of the drawing (canvas coordinates) at any scale from the display list
+    public BufferedImage renderDisplayList(double scale, Rectangle region) {
+        return displayList.rasterize(scale, region);
+    }
+
+    // Repaints just the dirty rectangle of the canvas from the display list, touching
+    // only the primitives the spatial index finds there
+    public void redrawRegion(Rectangle dirty) {
+        SegmentGrid grid = getSegmentGrid();
+        int count = grid.query(displayList, dirty);
+        Graphics2D g = (Graphics2D) getGraphicsContext().create();
+        try {
+            g.translate(dirty.x, dirty.y);
+            displayList.render(g, 1.0, dirty, grid.getResults(), count);
+        } finally {
+            g.dispose();
+        }
+        repaint(dirty);
+    }
+
+    // Index of the topmost primitive under the pixel (x, y), or -1 if there is none
+    public int primitiveAt(int x, int y) {
+        return getSegmentGrid().hitTest(displayList, x, y, 2f);
+    }
+
+    private SegmentGrid getSegmentGrid() {
+        if (segmentGrid == null) {
+            BufferedImage canvas = getBufferedImage();
+            segmentGrid = new SegmentGrid(canvas.getWidth(), canvas.getHeight(), 32);
+        }
+        return segmentGrid;
+    }
+
     // ========================== Pen Settings ============================
 
     public void penwidth(int width) {
@@ -109,6 +274,7 @@ public class GraphicsSystem extends LBUGraphics {
         setPenColour(new Color(r, g, b));
     }
     public void appendCommand(String command) {
+        if (headless) return;                 // Batch runs would drown in echoes
         System.out.println(">> " + command);  // Echo to console
       
     }
@@ -116,461 +282,1343 @@ public class GraphicsSystem extends LBUGraphics {
 
     // ========================== Image and Command File Handlers ============================
 
-    private void saveCommands(ArrayList<String> history) {
-        JFileChooser chooser = new JFileChooser();
-        chooser.setDialogTitle("Save Command File");
-        if (chooser.showSaveDialog(null) == JFileChooser.APPROVE_OPTION) {
+    // Saves history, or the history as it is when the file is picked if null
+    private void saveCommands(CommandHistory.Snapshot history) {
+        ask(() -> chooseFile("Save Command File", true, JFileChooser.FILES_ONLY), file -> {
+            if (file == null) return;
             try {
-                Files.write(chooser.getSelectedFile().toPath(), history);
+                CommandHistory.Snapshot snapshot = history != null ? history : commandHistory.snapshot();
+                // The file may be loaded onto any drawing, later, with clears that can be cancelled
+                CommandOptimizer optimizer = optimizeCommands ? new CommandOptimizer(getWidth(), getHeight(), null) : null;
+                if (optimizer != null) {
+                    optimizer.setDropBeforeClear(false);
+                    optimizer.setPredictPositions(turtleModelMatches());
+                }
+                if (snapshot.writeTo(file, optimizer)) reportOptimized(optimizer, "saved " + file.getName());  // .lbh or text
             } catch (IOException e) {
                 showError("Could not save file.");
             }
-        }
+        });
     }
 
     private void loadCommands() {
-        JFileChooser chooser = new JFileChooser();
-        chooser.setDialogTitle("Load Command File");
-        if (chooser.showOpenDialog(null) == JFileChooser.APPROVE_OPTION) {
-            try (Scanner scan = new Scanner(chooser.getSelectedFile())) {
-                while (scan.hasNextLine()) {
-                    processCommand(scan.nextLine());
+        ask(() -> chooseFile("Load Command File", false, JFileChooser.FILES_ONLY), file -> {
+            if (file == null) return;
+            try {
+                if (file.getName().toLowerCase().endsWith(".lgo")) {
+                    runScript(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+                } else if (BinaryHistory.isBinary(file)) {
+                    loadBinary(file);
+                } else {
+                    validateAndLoad(file, loaded -> { });
                 }
-            } catch (FileNotFoundException e) {
+            } catch (IOException e) {
                 showError("Could not load file.");
             }
+        });
+    }
+
+    // Checks the whole file first (ScriptValidator) and lists every bad line at once; in
+    // the GUI the user then decides whether to load it anyway. onDone gets whether the
+    // whole file was loaded.
+    private void validateAndLoad(File file, Consumer<Boolean> onDone) throws IOException {
+        long start = System.nanoTime();
+        ScriptValidator validator = new ScriptValidator(getWidth(), getHeight());
+        validator.setSimulateMoves(turtleModelMatches());
+        ScriptValidator.Result result = validator.validate(file, currentTurtle());
+        System.out.printf("Checked %s in %.1f ms: %s%n", file.getName(), (System.nanoTime() - start) / 1e6,
+                result.summary());
+
+        boolean optimize = result.isSelfContained();  // Not if it holds undo, redo or load
+        if (result.isClean()) {
+            onDone.accept(loadScript(file, optimize));
+            return;
+        }
+        if (noDialogs()) {
+            System.err.print(result.report(Integer.MAX_VALUE));
+            loadPreviewed(file, optimize, onDone);
+            return;
+        }
+
+        JTextArea report = new JTextArea(result.report(200));
+        report.setEditable(false);
+        report.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        JScrollPane pane = new JScrollPane(report);
+        pane.setPreferredSize(new Dimension(560, 240));
+        Object[] options = {"Load anyway (skip bad lines)", "Cancel"};
+        ask(() -> JOptionPane.showOptionDialog(null, new Object[] {result.summary(), pane}, "Problems in " + file.getName(),
+                JOptionPane.DEFAULT_OPTION, JOptionPane.WARNING_MESSAGE, null, options, options[1]),
+            choice -> {
+                if (choice != 0) {
+                    onDone.accept(false);
+                    return;
+                }
+                loadPreviewed(file, optimize, onDone);
+            });
+    }
+
+    // Loads a file whose errors were already listed, without reporting them one by one again
+    private void loadPreviewed(File file, boolean optimize, Consumer<Boolean> onDone) {
+        errorsPreviewed = true;
+        try {
+            onDone.accept(loadScript(file, optimize));
+        } catch (IOException e) {
+            showError("Could not load file.");
+        } finally {
+            errorsPreviewed = false;
+        }
+    }
+
+    // Streams a command file through the compiler and executor with progress and cancel,
+    // through a CommandOptimizer if optimize. Returns false if the user cancelled part-way.
+    // Runs on the execution thread (the menu and the load command both get there through
+    // ask or submit), so the event thread stays free to show the monitor and take the
+    // cancel; once created, the monitor is only touched on the event thread.
+    private boolean loadScript(File file, boolean optimize) throws IOException {
+        ProgressMonitor monitor = headless ? null
+                : new ProgressMonitor(this, "Loading " + file.getName(), null, 0, 100);
+        AtomicBoolean cancelled = new AtomicBoolean();
+        ScriptReader reader = new ScriptReader(file);
+        CommandOptimizer optimizer = optimize ? replayOptimizer() : null;
+        boolean[] optimizing = {optimizer != null};
+
+        repaintBatcher.resetCounters();
+        beginBatch();
+        long lines;
+        try {
+            lines = reader.read(
+                (line, number) -> {
+                    if (scriptCompiler.isScript(line)) {  // One-line repeat/to/make or a procedure call
+                        if (optimizing[0]) {
+                            // The optimizer cannot follow scripts: pass on what it holds, then stop
+                            optimizer.finish();
+                            runOptimized(optimizer);
+                            optimizing[0] = false;
+                        }
+                        runScript(line.toString());
+                        batchCommandDone();
+                        return;
+                    }
+                    if (optimizing[0]) {
+                        optimizer.add(line);
+                        runOptimized(optimizer);
+                        return;
+                    }
+                    compile(line);
+                    execute(current, line);
+                    batchCommandDone();
+                },
+                (read, total) -> {
+                    int percent = total == 0 ? 100 : (int) (read * 100 / total);
+                    if (monitor != null) {
+                        SwingUtilities.invokeLater(() -> {
+                            monitor.setProgress(percent);
+                            if (monitor.isCanceled()) cancelled.set(true);
+                        });
+                    } else {
+                        System.out.println("Loading " + file.getName() + ": " + percent + "%");
+                    }
+                },
+                cancelled::get);
+            if (optimizing[0]) {
+                optimizer.finish();
+                runOptimized(optimizer);
+            }
+        } finally {
+            endBatch();
+        }
+
+        if (monitor != null) SwingUtilities.invokeLater(monitor::close);
+        System.out.println((cancelled.get() ? "Cancelled loading " : "Loaded ") + lines + " lines from " + file.getName()
+                + " (" + repaintBatcher.getFrames() + " frames painted, "
+                + repaintBatcher.getSkipped() + " repaints skipped)");
+        if (optimizer != null) reportOptimized(optimizer, file.getName());
+        return !cancelled.get();
+    }
+
+    // Replays a binary history (.lbh). Records arrive already compiled, so only raw text
+    // records go through the compiler; failed commands are reported on the console.
+    private void loadBinary(File file) throws IOException {
+        long start = System.nanoTime();
+        CommandOptimizer optimizer = optimizeCommands && !dependsOnHistory(file) ? replayOptimizer() : null;
+        repaintBatcher.resetCounters();
+        errorsPreviewed = true;
+        beginBatch();
+        long commands;
+        try {
+            commands = BinaryHistory.read(file, (in, text) -> {
+                if (optimizer != null) {
+                    optimizer.add(in, text);
+                    runOptimized(optimizer);
+                    return;
+                }
+                current.copyFrom(in);
+                execute(current, text);
+                batchCommandDone();
+            });
+            if (optimizer != null) {
+                optimizer.finish();
+                runOptimized(optimizer);
+            }
+        } finally {
+            endBatch();
+            errorsPreviewed = false;
+        }
+        System.out.printf("Loaded %d commands from %s in %.1f ms (%d frames painted, %d repaints skipped)%n",
+                commands, file.getName(), (System.nanoTime() - start) / 1e6,
+                repaintBatcher.getFrames(), repaintBatcher.getSkipped());
+        if (optimizer != null) reportOptimized(optimizer, file.getName());
+    }
+
+    // True if a binary history holds undo, redo or load, so must be replayed as it is
+    private static boolean dependsOnHistory(File file) throws IOException {
+        boolean[] found = new boolean[1];
+        BinaryHistory.read(file, (in, text) -> found[0] |= CommandOptimizer.dependsOnHistory(in.op));
+        return found[0];
+    }
+
+    // ========================== Command Optimizer ============================
+
+    // An optimizer for commands about to run on this canvas as it is now; null if turned off
+    private CommandOptimizer replayOptimizer() {
+        if (!optimizeCommands) return null;
+        CommandOptimizer optimizer = new CommandOptimizer(getWidth(), getHeight(), currentTurtle());
+        optimizer.setDropBeforeClear(noDialogs());  // In the GUI a clear asks first and can be cancelled
+        optimizer.setPredictPositions(turtleModelMatches());
+        return optimizer;
+    }
+
+    // Whether TurtleModel, which the optimizer uses to follow the turtle, agrees with the
+    // LBUGraphics in use. Checked once: a throwaway headless canvas and a model run the
+    // same reset, turns, pen-up moves and shapes side by side.
+    static boolean turtleModelMatches() {
+        Boolean matches = turtleModelMatches;
+        if (matches == null) {
+            matches = probeTurtleModel();
+            turtleModelMatches = matches;
+            if (!matches) System.out.println("Turtle model does not match LBUGraphics; positions are not predicted");
+        }
+        return matches;
+    }
+
+    private static boolean probeTurtleModel() {
+        GraphicsSystem probe = new GraphicsSystem(true);
+        try {
+            return probeTurtleModel(probe);
+        } finally {
+            probe.dispose();
+        }
+    }
+
+    private static boolean probeTurtleModel(GraphicsSystem probe) {
+        TurtleModel model = new TurtleModel(probe.getWidth(), probe.getHeight(), 0, 0, 0);
+        probe.evaluate("reset");
+        probe.evaluate("penup");
+        model.reset();
+        if (!sameTurtle(probe, model)) return false;
+
+        int[] turns = {37, -101, 200, -15, 90, -333};  // Clockwise; negative turns left
+        int[] moves = {50, -23, 71, 9, -40, 64};       // Negative moves reverse
+        for (int i = 0; i < turns.length; i++) {
+            probe.evaluate(turns[i] >= 0 ? "right " + turns[i] : "left " + -turns[i]);
+            model.turn(turns[i]);
+            probe.evaluate(moves[i] >= 0 ? "move " + moves[i] : "reverse " + -moves[i]);
+            if (!model.move(Math.abs(moves[i]), Integer.signum(moves[i]))) return false;
+            if (!sameTurtle(probe, model)) return false;
+        }
+
+        // Shapes turn with left() and truncated angles; the optimizer follows them too
+        int[][] shapes = {{Opcodes.SQUARE, 23, 0, 0}, {Opcodes.EQUILATERAL, 31, 0, 0}, {Opcodes.TRIANGLE, 30, 40, 50},
+                {Opcodes.TRIANGLE, 27, 19, 33}};
+        for (int[] shape : shapes) {
+            probe.evaluate("right 29");
+            model.turn(29);
+            String args = shape[0] == Opcodes.TRIANGLE ? " " + shape[1] + " " + shape[2] + " " + shape[3] : " " + shape[1];
+            probe.evaluate(Opcodes.name(shape[0]) + args);
+            model.shape(shape[0], shape[1], shape[2], shape[3]);
+            if (!sameTurtle(probe, model)) return false;
+        }
+        return true;
+    }
+
+    private static boolean sameTurtle(GraphicsSystem probe, TurtleModel model) {
+        TurtleState t = probe.currentTurtle();
+        return t.x == model.x && t.y == model.y && Math.floorMod(t.direction, 360) == model.direction;
+    }
+
+    // Runs whatever optimizer has ready
+    private void runOptimized(CommandOptimizer optimizer) {
+        for (String command; (command = optimizer.poll()) != null; ) {
+            compile(command);
+            execute(current, command);
+            batchCommandDone();
         }
     }
 
+    // Prints what the optimizer removed and about how much replay time that saves, from the
+    // average time of each command in this session
+    private void reportOptimized(CommandOptimizer optimizer, String what) {
+        System.out.printf("Optimized %s: %s; about %.1f ms less to replay%n", what, optimizer.summary(),
+                optimizer.estimatedSavingNanos(stats) / 1e6);
+    }
+
+    public void setOptimizeCommands(boolean optimize) {
+        optimizeCommands = optimize;
+    }
+
+    // Flushes the command journal; each command was already appended by logCommand
     private void saveAuto() {
+        if (journal == null) return;
+        long start = System.nanoTime();
         try {
-            File dir = new File("command_logs");
-            if (!dir.exists()) dir.mkdirs();
-            String fileName = "commands_" + new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date()) + ".txt";
-            File file = new File(dir, fileName);
-            Files.write(file.toPath(), commandHistory);
-            System.out.println("Auto-saved to " + file.getAbsolutePath());
+            journal.flush();
         } catch (IOException e) {
             System.err.println("Auto-save failed.");
         }
+        phaseDone(CommandStats.IO, start);
     }
 
     public void saveCommandLog() {
-        if (commandHistory.isEmpty()) {
-            showInfo("No commands to save.");
-            return;
-        }
+        submit(() -> {
+            if (commandHistory.isEmpty()) {
+                showInfo("No commands to save.");
+                return;
+            }
 
-        JFileChooser chooser = new JFileChooser();
-        chooser.setDialogTitle("Save Command Log (.txt)");
+            ask(() -> chooseFile("Save Command Log (.txt)", true, JFileChooser.FILES_ONLY), file -> {
+                if (file == null) return;
+                try {
+                    commandHistory.writeTo(file);
+                    showInfo("Command log saved.");
+                } catch (IOException e) {
+                    showError("Error saving log!");
+                }
+            });
+        });
+    }
+
+    // Format, scale and file picked in the Save Drawing dialogs
+    private static final class ImageTarget {
+        int choice;       // 0 = PNG, 1 = JPG, 2 = poster PNG
+        double scale = 1;
+        File file;
+        String error;
+    }
 
-        if (chooser.showSaveDialog(null) == JFileChooser.APPROVE_OPTION) {
+    public void saveCanvasImageWithFormat() {
+        ask(GraphicsSystem::askImageTarget, target -> {
+            if (target == null) return;
+            if (target.error != null) {
+                showError(target.error);
+                return;
+            }
+
+            String format = (target.choice == 1) ? "jpg" : "png";
             try {
-                Files.write(chooser.getSelectedFile().toPath(), commandHistory);
-                showInfo("Command log saved.");
+                if (target.choice == 2) {
+                    exportPoster(target.file, target.scale);
+                    showInfo("Poster saved as PNG");
+                    return;
+                }
+                saveSnapshotAsync(format, target.file, "Drawing saved as " + format.toUpperCase(), true);
             } catch (IOException e) {
-                showError("Error saving log!");
+                showError("Failed to save drawing!");
             }
-        }
+        });
     }
 
-    public void saveCanvasImageWithFormat() {
-        Object[] options = {"PNG", "JPG"};
-        int choice = JOptionPane.showOptionDialog(null, "Choose image format:", "Save Drawing",
+    // Runs the Save Drawing dialogs on the event thread; null if cancelled
+    private static ImageTarget askImageTarget() {
+        ImageTarget target = new ImageTarget();
+        Object[] options = {"PNG", "JPG", "Poster PNG"};
+        target.choice = JOptionPane.showOptionDialog(null, "Choose image format:", "Save Drawing",
                 JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE, null, options, options[0]);
 
-        if (choice == JOptionPane.CLOSED_OPTION) return;
+        if (target.choice == JOptionPane.CLOSED_OPTION) return null;
 
-        String format = (choice == 0) ? "png" : "jpg";
-        JFileChooser chooser = new JFileChooser();
-        chooser.setDialogTitle("Save Drawing");
+        // Poster export re-renders the display list at a larger scale instead of saving the screen
+        if (target.choice == 2) {
+            String answer = JOptionPane.showInputDialog(null, "Scale factor (20 gives 16000x8000 from 800x400):", "20");
+            if (answer == null) return null;
+            try {
+                target.scale = Double.parseDouble(answer.trim());
+            } catch (NumberFormatException e) {
+                target.error = "Scale must be a number.";
+                return target;
+            }
+            if (target.scale <= 0) {
+                target.error = "Scale must be positive.";
+                return target;
+            }
+        }
 
-        if (chooser.showSaveDialog(null) == JFileChooser.APPROVE_OPTION) {
-            File selectedFile = chooser.getSelectedFile();
-            String path = selectedFile.getAbsolutePath();
-            if (!path.toLowerCase().endsWith("." + format)) path += "." + format;
+        String format = (target.choice == 1) ? "jpg" : "png";
+        File selectedFile = chooseFile("Save Drawing", true, JFileChooser.FILES_ONLY);
+        if (selectedFile == null) return null;
+        String path = selectedFile.getAbsolutePath();
+        if (!path.toLowerCase().endsWith("." + format)) path += "." + format;
+        target.file = new File(path);
+        return target;
+    }
+
+    public void saveSvg() {
+        ask(() -> chooseFile("Save Vector Drawing (.svg)", true, JFileChooser.FILES_ONLY), file -> {
+            if (file == null) return;
+            String path = file.getAbsolutePath();
+            if (!path.toLowerCase().endsWith(".svg")) path += ".svg";
 
             try {
-                BufferedImage image = getBufferedImage();
-                ImageIO.write(image, format, new File(path));
-                showInfo("Drawing saved as " + format.toUpperCase());
+                long start = System.nanoTime();
+                BufferedImage canvas = getBufferedImage();
+                SvgExporter exporter = new SvgExporter(displayList, canvas.getWidth(), canvas.getHeight());
+                exporter.export(new File(path));
+                System.out.printf("SVG saved in %.1f ms (%d segments, %d merged or dropped)%n",
+                        (System.nanoTime() - start) / 1e6, exporter.getSegmentCount(), exporter.getDroppedCount());
+                showInfo("Drawing saved as SVG");
             } catch (IOException e) {
                 showError("Failed to save drawing!");
             }
-        }
+        });
+    }
+
+    // Renders the display list at scale in parallel tiles, streaming them to a PNG file
+    public void exportPoster(File file, double scale) throws IOException {
+        BufferedImage canvas = getBufferedImage();
+        new TiledExporter(displayList, canvas.getWidth(), canvas.getHeight()).exportPng(file, scale);
     }
 
     public void IMG() {
-        JFileChooser chooser = new JFileChooser();
-        chooser.setDialogTitle("Save Image");
-        chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        ask(() -> chooseFile("Save Image", true, JFileChooser.DIRECTORIES_ONLY), dir -> {
+            if (dir == null) return;
+            String path = dir.getAbsolutePath() + "/picture.png";
+            saveSnapshotAsync("png", new File(path), "Screenshot saved", false);
+        });
+    }
+
+    // Copies the canvas right away, then encodes and writes the copy in the background
+    private void saveSnapshotAsync(String format, File file, String doneMessage, boolean notify) {
+        BufferedImage snapshot = ImageSaveService.snapshot(getBufferedImage());
+        imageSaver.save(snapshot, format, file, (job, error) -> submit(() -> {
+            if (error != null) {
+                showError("Failed to save drawing!");
+            } else {
+                System.out.println(doneMessage + ": " + file.getAbsolutePath());
+                if (notify) showInfo(doneMessage);
+            }
+        }));
+    }
+
+    public ImageSaveService getImageSaver() {
+        return imageSaver;
+    }
 
-        if (chooser.showSaveDialog(null) == JFileChooser.APPROVE_OPTION) {
-            String path = chooser.getSelectedFile().getAbsolutePath() + "/picture.png";
+    public void IMGLoad() {
+        ask(() -> chooseFile("Open Image", false, JFileChooser.FILES_ONLY), file -> {
+            if (file == null) return;
             try {
-                Thread.sleep(120);
-                Robot robot = new Robot();
-                Rectangle capture = new Rectangle(0, 0, 900, 900);
-                BufferedImage img = robot.createScreenCapture(capture);
-                ImageIO.write(img, "png", new File(path));
-                System.out.println("Screenshot saved");
-            } catch (Exception e) {
+                loadImage(file);
+            } catch (IOException e) {
                 e.printStackTrace();
+                showError("Image loading failed.");
             }
-        }
+        });
     }
 
-    public void IMGLoad() throws IOException {
-        JFileChooser chooser = new JFileChooser();
-        chooser.setDialogTitle("Open Image");
-
-        if (chooser.showOpenDialog(null) == JFileChooser.APPROVE_OPTION) {
-            File file = chooser.getSelectedFile();
-            BufferedImage img = ImageIO.read(file);
+    // Makes file the canvas image, decoded at about canvas resolution (ImageLoader). The
+    // target is the drawing area as created, not the current image, which may itself be
+    // a loaded (larger) image; so reloading a file hits the cache at the same size.
+    private void loadImage(File file) throws IOException {
+        long start = System.nanoTime();
+        long hits = imageLoader.getHits();
+        BufferedImage img = imageLoader.load(file, canvasWidth, canvasHeight,
+                progressiveImages && !noDialogs() ? this::showPartialImage : null);
+        System.out.printf("Decoded %s to %dx%d in %.1f ms%s%n", file.getName(), img.getWidth(), img.getHeight(),
+                (System.nanoTime() - start) / 1e6, imageLoader.getHits() > hits ? " (cached)" : "");
+
+        canvasLock.lock();
+        try {
             setBufferedImage(img);
-            Graphics g = getGraphics();
-            g.drawImage(img, 0, 0, this);
+        } finally {
+            canvasLock.unlock();
         }
+        repaint();
     }
 
-    // ========================== Command Parsing ============================
+    // Draws a partly decoded image straight to the screen; the canvas itself is unchanged
+    private void showPartialImage(BufferedImage partial) {
+        Graphics g = getGraphics();
+        if (g == null) return;
+        g.drawImage(partial, 0, 0, this);
+        g.dispose();
+    }
 
-    public void processCommand(String command) {
-        commandParts = new ArrayList<>(List.of(command.split(" ")));
-        commandLength = commandParts.size();
-        evaluate(command);               // Run it
-        appendCommand(command);         // Show in console (or text area)
+    public ImageLoader getImageLoader() {
+        return imageLoader;
     }
 
- // This method processes and executes user commands from the input field
-    public void evaluate(String val) {
-        try {
-            String cmd = commandParts.get(0); // Get the main command keyword (e.g., "move")
+    public void setProgressiveImages(boolean progressive) {
+        progressiveImages = progressive;
+    }
+
+    // Second half of the load command, once a file was picked (null if cancelled)
+    private void loadFile(File selectedFile, String command) {
+        if (selectedFile == null) return;
+        String fileName = selectedFile.getName().toLowerCase();
 
-            // Check if the entered command is supported
-            if (!validCommands.contains(cmd)) {
-                showError("Invalid command entered.");
+        try {
+            if (fileName.endsWith(".txt")) {
+                // Check, then stream and execute commands from text file
+                validateAndLoad(selectedFile, loaded -> {
+                    showInfo(loaded ? "Command file loaded successfully." : "Loading cancelled.");
+                    logCommand(command);
+                });
                 return;
+            } else if (fileName.endsWith(BinaryHistory.EXTENSION)) {
+                loadBinary(selectedFile);
+                showInfo("Command history loaded successfully.");
+            } else if (fileName.endsWith(".lgo")) {
+                runScript(new String(Files.readAllBytes(selectedFile.toPath()), StandardCharsets.UTF_8));
+            } else if (fileName.endsWith(".png") || fileName.endsWith(".jpg") || fileName.endsWith(".jpeg")) {
+                // Load image to canvas
+                loadImage(selectedFile);
+                showInfo("Image loaded successfully.");
+                System.out.println("Loaded image from " + fileName);
+            } else {
+                showError("Unsupported file type. Please select .txt, .lbh, .lgo or .png/.jpg image.");
             }
 
-            switch (cmd) {
-
-                // Movement-related commands
-                case "move":
-                case "reverse":
-                    if (commandLength < 2) {
-                        showError("Please enter a distance.");
-                        return;
-                    }
-
-                    int distance = Integer.parseInt(commandParts.get(1));
-                    if (distance < 0) {
-                        showError("Distance cannot be negative.");
-                        return;
-                    }
-
-                    // Determine direction based on command
-                    int directionMultiplier = cmd.equals("reverse") ? -1 : 1;
-
-                    // Calculate new coordinates based on direction
-                    double radians = Math.toRadians(getDirection());
-                    int futureX = xPos + (int) (distance * Math.sin(radians)) * directionMultiplier;
-                    int futureY = yPos + (int) (distance * Math.cos(radians)) * directionMultiplier;
-
-                    // Ensure movement does not go outside the drawing canvas
-                    if (futureX < 0 || futureX > getWidth() || futureY < 0 || futureY > getHeight()) {
-                        showError("Move would go out of bounds!");
-                        return;
-                    }
+            logCommand(command);
+        } catch (IOException e) {
+            showError("Failed to load file: " + e.getMessage());
+        }
+    }
 
-                    forward(distance * directionMultiplier);
-                    commandHistory.add(val);
-                    saveAuto();
-                    break;
+    // Shows a file chooser (event thread only); returns the selected file or null
+    private static File chooseFile(String title, boolean save, int selectionMode) {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setDialogTitle(title);
+        chooser.setFileSelectionMode(selectionMode);
+        int result = save ? chooser.showSaveDialog(null) : chooser.showOpenDialog(null);
+        return result == JFileChooser.APPROVE_OPTION ? chooser.getSelectedFile() : null;
+    }
 
-                // Rotation commands
-                case "left":
-                case "right":
-                    // Default to 90 degrees if no value is provided
-                    int angle = (commandLength == 1) ? 90 : Integer.parseInt(commandParts.get(1));
-                    if (angle < 0) {
-                        showError("Angle cannot be negative.");
-                        return;
-                    }
+    // ========================== Command Parsing ============================
 
-                    if (cmd.equals("left")) left(angle);
-                    else right(angle);
+    private final Instruction current = new Instruction();  // Reused for every command
 
-                    commandHistory.add(val);
-                    saveAuto();
-                    break;
+    public void processCommand(String command) {
+        if (!onExecutionThread()) {      // Typed commands arrive on the event thread
+            submit(() -> processCommand(command));
+            return;
+        }
+        evaluate(command);               // Run it
+        appendCommand(command);         // Show in console (or text area)
+    }
 
-                // Shape drawing commands (single-parameter shapes)
-                case "square":
-                    drawShapeWithOneParam(val, commandParts.get(1), this::square);
-                    break;
+    // Runs a command like processCommand, but without dialogs: returns its first error
+    // message, or null if it succeeded. Used for commands from the CommandServer; must
+    // be called on the execution thread (see runAndWait).
+    public String processCaptured(String command) {
+        return captured(() -> processCommand(command));
+    }
 
-                case "circle":
-                    drawShapeWithOneParam(val, commandParts.get(1), this::circle);
-                    break;
+    // Runs a compiled command like execute, returning its first error like processCaptured
+    public String executeCaptured(Instruction in, CharSequence text) {
+        return captured(() -> execute(in, text));
+    }
 
-                case "equilateral":
-                    drawShapeWithOneParam(val, commandParts.get(1), this::EquilateralTriangle);
-                    break;
+    private String captured(Runnable command) {
+        capturing = true;
+        capturedError = null;
+        try {
+            command.run();
+            return capturedError;
+        } finally {
+            capturing = false;
+            capturedError = null;
+        }
+    }
 
-                // Triangle requires 3 side lengths
-                case "triangle":
-                    if (commandLength < 4) {
-                        showError("Enter 3 sides for triangle.");
-                        return;
-                    }
-                    int a = Integer.parseInt(commandParts.get(1));
-                    int b = Integer.parseInt(commandParts.get(2));
-                    int c = Integer.parseInt(commandParts.get(3));
-                    Triangle(a, b, c);
-                    commandHistory.add(val);
-                    saveAuto();
-                    break;
+ // This method compiles and executes user commands from the input field
+    public void evaluate(String val) {
+        if (scriptCompiler.isScript(val)) {
+            runScript(val);  // repeat/to/make and procedure calls
+            return;
+        }
+        compile(val);
+        execute(current, val);
+    }
 
-                // Pen up/down controls
-                case "penup":
-                    drawOff();
-                    logCommand(val);
-                    break;
+    // Compiles val into current, timed as the parse phase
+    private void compile(CharSequence val) {
+        long start = System.nanoTime();
+        CommandCompiler.compile(val, current);
+        phaseDone(CommandStats.PARSE, start);
+    }
 
-                case "pendown":
-                    drawOn();
-                    logCommand(val);
-                    break;
+    // Compiles a script once and runs it; each command it produces goes through execute
+    public void runScript(String source) {
+        Script script;
+        long start = System.nanoTime();
+        try {
+            script = scriptCompiler.compile(source);
+        } catch (Script.ScriptException e) {
+            showError("Script error: " + e.getMessage());
+            return;
+        } finally {
+            phaseDone(CommandStats.PARSE, start);
+        }
 
-                // Pen width setting
-                case "penwidth":
-                    drawShapeWithOneParam(val, commandParts.get(1), this::penwidth);
-                    break;
+        beginBatch();
+        try {
+            script.run(this::execute);
+        } catch (Script.ScriptException e) {
+            showError("Script error: " + e.getMessage());
+        } finally {
+            endBatch();
+        }
+    }
 
-                // Predefined pen colors
-                case "blue":
-                    setPenColour(Color.blue);
-                    logCommand(val);
-                    break;
+    // Runs one compiled command; val is the original text kept in the history
+    public void execute(Instruction in, CharSequence val) {
+        int op = in.op;  // in may be reused by nested commands (load, undo)
+        int errorsBefore = errorCount;
+        long excludedBefore = excludedNanos;
+        long start = System.nanoTime();
+        executeDepth++;
+        try {
+            // Syntax errors and unsupported commands were caught by the compiler
+            if (!in.isValid()) {
+                showError(in.error);
+                return;
+            }
 
-                case "red":
-                    setPenColour(Color.red);
-                    logCommand(val);
-                    break;
+            // Commands that need dialogs or the screen cannot run without a window
+            if (noDialogs() && needsWindow(in.op)) {
+                showError("Command not available " + (headless ? "in headless mode" : "remotely") + ": "
+                        + Opcodes.name(in.op));
+                return;
+            }
 
-                case "green":
-                    setPenColour(Color.green);
-                    logCommand(val);
-                    break;
+            String argError = CommandCompiler.checkArgs(in);
+            if (argError != null) {
+                showError(argError);
+                return;
+            }
 
-                case "white":
-                    setPenColour(Color.white);
-                    logCommand(val);
-                    break;
+            long historyBefore = commandHistory.size();
+            boolean lock = op != Opcodes.ABOUT;  // The about animation repaints as it goes
+            if (lock) canvasLock.lock();
+            try {
+                runInstruction(in, val);
+            } finally {
+                if (lock) canvasLock.unlock();
+            }
 
-                // Custom RGB pen color
-                case "pencolor":
-                case "pen":  // allow both "pencolor" and "pen"
-                    if (commandLength < 4) {
-                        showError("Enter 3 RGB values (0–255).");
-                        return;
+            // Drawing commands that succeeded (were logged) can be undone
+            if (!replaying && commandHistory.size() > historyBefore && isUndoable(op)) {
+                undoManager.record(val.toString());
+            }
+            if (recorder != null && !replaying && errorCount == errorsBefore && !isRecordingCommand(op)) {
+                recorder.commandDone(op, getBufferedImage(), displayList);
+                if (recorder.getFailure() != null) {
+                    try {
+                        stopRecording();
+                    } catch (IOException e) {
+                        showError("Recording stopped: " + e.getMessage());
                     }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();  // Waiting for the frame encoder
+        } catch (Exception e) {
+            showError("Unexpected error: " + e.getMessage());
+        } finally {
+            executeDepth--;
+            long elapsed = System.nanoTime() - start;
+            stats.recordCommand(op, elapsed, errorCount > errorsBefore);
+            if (executeDepth == 0) {
+                // Nested commands (load, undo) are already inside the outermost one
+                stats.recordPhase(CommandStats.DRAW, elapsed - (excludedNanos - excludedBefore));
+            }
+        }
+    }
 
-                    try {
-                        int r = Integer.parseInt(commandParts.get(1));
-                        int g = Integer.parseInt(commandParts.get(2));
-                        int b1 = Integer.parseInt(commandParts.get(3));
+    // Dispatches a validated instruction to the drawing and file methods
+    private void runInstruction(Instruction in, CharSequence val) throws IOException {
+        switch (in.op) {
 
-                        if (r < 0 || r > 255 || g < 0 || g > 255 || b1 < 0 || b1 > 255) {
-                            showError("RGB values must be between 0 and 255.");
-                            return;
-                        }
+            // Movement-related commands
+            case Opcodes.MOVE:
+            case Opcodes.REVERSE:
+                int distance = in.args[0];
 
-                        pencolour(r, g, b1);
-                        logCommand(val);
-                    } catch (NumberFormatException e) {
-                        showError("RGB values must be valid numbers.");
-                    }
-                    break;
+                // Determine direction based on command
+                int directionMultiplier = in.op == Opcodes.REVERSE ? -1 : 1;
 
+                // Calculate new coordinates based on direction
+                double radians = Math.toRadians(getDirection());
+                int futureX = xPos + (int) (distance * Math.sin(radians)) * directionMultiplier;
+                int futureY = yPos + (int) (distance * Math.cos(radians)) * directionMultiplier;
 
-                // Save commands and canvas image
-                case "save":
-                    Object[] options = {"Save Commands (.txt)", "Save Canvas Image (.png/.jpg)"};
-                    int choice = JOptionPane.showOptionDialog(
-                        null,
-                        "What would you like to save?",
-                        "Save Options",
-                        JOptionPane.DEFAULT_OPTION,
-                        JOptionPane.QUESTION_MESSAGE,
-                        null,
-                        options,
-                        options[0]
-                    );
+                // Ensure movement does not go outside the drawing canvas
+                if (futureX < 0 || futureX > getWidth() || futureY < 0 || futureY > getHeight()) {
+                    showError("Move would go out of bounds!");
+                    return;
+                }
 
+                forward(distance * directionMultiplier);
+                logCommand(val);
+                break;
+
+            // Rotation commands (angle defaults to 90 when omitted)
+            case Opcodes.LEFT:
+                left(in.args[0]);
+                logCommand(val);
+                break;
+
+            case Opcodes.RIGHT:
+                right(in.args[0]);
+                logCommand(val);
+                break;
+
+            // Shape drawing commands (single-parameter shapes)
+            case Opcodes.SQUARE:
+                square(in.args[0]);
+                logCommand(val);
+                break;
+
+            case Opcodes.CIRCLE:
+                circle(in.args[0]);
+                logCommand(val);
+                break;
+
+            case Opcodes.EQUILATERAL:
+                EquilateralTriangle(in.args[0]);
+                logCommand(val);
+                break;
+
+            // Triangle requires 3 side lengths
+            case Opcodes.TRIANGLE:
+                Triangle(in.args[0], in.args[1], in.args[2]);
+                logCommand(val);
+                break;
+
+            // Pen up/down controls
+            case Opcodes.PENUP:
+                drawOff();
+                logCommand(val);
+                break;
+
+            case Opcodes.PENDOWN:
+                drawOn();
+                logCommand(val);
+                break;
+
+            // Pen width setting
+            case Opcodes.PENWIDTH:
+                penwidth(in.args[0]);
+                logCommand(val);
+                break;
+
+            // Predefined pen colors
+            case Opcodes.BLUE:
+                setPenColour(Color.blue);
+                logCommand(val);
+                break;
+
+            case Opcodes.RED:
+                setPenColour(Color.red);
+                logCommand(val);
+                break;
+
+            case Opcodes.GREEN:
+                setPenColour(Color.green);
+                logCommand(val);
+                break;
+
+            case Opcodes.WHITE:
+                setPenColour(Color.white);
+                logCommand(val);
+                break;
+
+            // Custom RGB pen color ("pencolor" and "pen")
+            case Opcodes.PENCOLOR:
+            case Opcodes.PEN:
+                pencolour(in.args[0], in.args[1], in.args[2]);
+                logCommand(val);
+                break;
+
+            // Save commands and canvas image
+            case Opcodes.SAVE: {
+                String command = val.toString();  // val may be a reused buffer if the answer is queued
+                Object[] options = {"Save Commands (.txt)", "Save Canvas Image (.png/.jpg)", "Save Vector (.svg)"};
+                ask(() -> JOptionPane.showOptionDialog(
+                    null,
+                    "What would you like to save?",
+                    "Save Options",
+                    JOptionPane.DEFAULT_OPTION,
+                    JOptionPane.QUESTION_MESSAGE,
+                    null,
+                    options,
+                    options[0]
+                ), choice -> {
                     if (choice == 0) {
                         // Save command history
-                        saveCommands(commandHistory);
+                        saveCommands(null);
                         System.out.println("Commands saved to .txt file.");
                     } else if (choice == 1) {
                         // Save canvas image
                         saveCanvasImageWithFormat();
                         System.out.println("Canvas saved as image.");
+                    } else if (choice == 2) {
+                        // Save drawing as SVG from the display list
+                        saveSvg();
                     } else {
                         System.out.println("Save operation cancelled.");
                     }
-                    logCommand(val);
-                    break;
-
-
-                case "load":
-                    JFileChooser fileChooser = new JFileChooser();
-                    fileChooser.setDialogTitle("Select Command File or Image");
-
-                    int userSelection = fileChooser.showOpenDialog(null);
-                    if (userSelection == JFileChooser.APPROVE_OPTION) {
-                        File selectedFile = fileChooser.getSelectedFile();
-                        String fileName = selectedFile.getName().toLowerCase();
-
-                        try {
-                            if (fileName.endsWith(".txt")) {
-                                // Load and execute commands from text file
-                                Scanner scan = new Scanner(selectedFile);
-                                while (scan.hasNextLine()) {
-                                    String line = scan.nextLine();
-                                    processCommand(line);
-                                }
-                                scan.close();
-                                showInfo("Command file loaded successfully.");
-                                System.out.println("Loaded commands from " + fileName);
-                            } else if (fileName.endsWith(".png") || fileName.endsWith(".jpg") || fileName.endsWith(".jpeg")) {
-                                // Load image to canvas
-                                BufferedImage img = ImageIO.read(selectedFile);
-                                this.setBufferedImage(img);
-                                Graphics g = this.getGraphics();
-                                g.drawImage(img, 0, 0, this);
-                                showInfo("Image loaded successfully.");
-                                System.out.println("Loaded image from " + fileName);
-                            } else {
-                                showError("Unsupported file type. Please select .txt or .png/.jpg image.");
-                            }
-
-                            logCommand(val);
-                        } catch (IOException e) {
-                            showError("Failed to load file: " + e.getMessage());
-                        }
-                    }
-                    break;
-                // Take a screenshot of the drawing area
-                case "screenshot":
-                    IMG();
-                    logCommand(val);
-                    break;
-
-                // Load an external image onto canvas
-                case "image":
-                    try {
-                        IMGLoad();
-                        logCommand(val);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        showError("Image loading failed.");
-                    }
-                    break;
+                    logCommand(command);
+                });
+                break;
+            }
 
-                // Reset turtle to initial state
-                case "reset":
-                    reset();
-                    saveAuto();
-                    break;
+            case Opcodes.LOAD: {
+                String command = val.toString();
+                ask(() -> chooseFile("Select Command File or Image", false, JFileChooser.FILES_ONLY),
+                        selectedFile -> loadFile(selectedFile, command));
+                break;
+            }
 
-                // Clear canvas with optional save confirmation
-                case "clear":
-                    handleClear(val);
+            // Take a screenshot of the drawing area
+            case Opcodes.SCREENSHOT:
+                IMG();
+                logCommand(val);
+                break;
+
+            // Load an external image onto canvas
+            case Opcodes.IMAGE:
+                IMGLoad();
+                logCommand(val);
+                break;
+
+            // Reset turtle to initial state
+            case Opcodes.RESET:
+                reset();
+                saveAuto();
+                if (!replaying) undoManager.record(val.toString());  // Not kept in history, but undoable
+                break;
+
+            // Clear canvas with optional save confirmation
+            case Opcodes.CLEAR:
+                handleClear(val);
+                break;
+
+            // Display user-defined name
+            case Opcodes.NAME:
+                myName();
+                logCommand(val);
+                break;
+
+            // Display info about the system
+            case Opcodes.ABOUT:
+                about();
+                logCommand(val);
+                undoManager.rebase();  // The animation is not replayed by undo
+                break;
+
+            // Show help/instruction menu
+            case Opcodes.HELP:
+                Help();
+                logCommand(val);
+                break;
+
+            // Step backwards or forwards through drawing commands
+            case Opcodes.UNDO:
+                undo();
+                break;
+
+            case Opcodes.REDO:
+                redo();
+                break;
+
+            case Opcodes.STATS:
+                showStats();
+                break;
+
+            // Animation capture; not kept in the history
+            case Opcodes.RECORD:
+                askRecording(AnimationRecorder.Format.GIF, in.args[0]);
+                break;
+
+            case Opcodes.RECORDFRAMES:
+                askRecording(AnimationRecorder.Format.PNG_SEQUENCE, in.args[0]);
+                break;
+
+            case Opcodes.STOPRECORD:
+                if (recorder == null) {
+                    showInfo("Not recording.");
                     break;
+                }
+                try {
+                    showInfo(stopRecording());
+                } catch (IOException e) {
+                    showError("Recording failed: " + e.getMessage());
+                }
+                break;
+        }
+    }
+ // Logs a command and appends it to the auto-save journal
+    private void logCommand(CharSequence val) {
+        if (replaying) return;    // Undo/redo replays are already in the history
+        String command = val.toString();
+        commandHistory.add(command);  // Add to history list
+        appendToJournal(command);     // Constant-cost append, no full rewrite
+    }
 
-                // Display user-defined name
-                case "name":
-                    myName();
-                    logCommand(val);
-                    break;
+    private void appendToJournal(String command) {
+        if (journal == null) return;
+        long start = System.nanoTime();
+        try {
+            journal.append(command);
+        } catch (IOException e) {
+            System.err.println("Auto-save failed.");
+        }
+        phaseDone(CommandStats.IO, start);
+    }
 
-                // Display info about the system
-                case "about":
-                    about();
-                    logCommand(val);
-                    break;
+    // ========================== Animation Recording ============================
 
-                // Show help/instruction menu
-                case "help":
-                    Help();
-                    logCommand(val);
-                    break;
-            }
-        } catch (NumberFormatException e) {
-            showError("Invalid number format in parameters.");
-        } catch (Exception e) {
-            showError("Unexpected error: " + e.getMessage());
+    // Second half of record/recordframes: picks the GIF file or frame folder
+    private void askRecording(AnimationRecorder.Format format, int commandsPerFrame) {
+        if (recorder != null) {
+            showError("Already recording to " + recorder.getOutput().getName() + ". Use stoprecord first.");
+            return;
         }
+        boolean gif = format == AnimationRecorder.Format.GIF;
+        ask(() -> chooseFile(gif ? "Record Animation (.gif)" : "Record Frames Into Folder", true,
+                gif ? JFileChooser.FILES_ONLY : JFileChooser.DIRECTORIES_ONLY), file -> {
+            if (file == null) return;
+            if (gif && !file.getName().toLowerCase().endsWith(".gif")) file = new File(file.getPath() + ".gif");
+            try {
+                startRecording(new AnimationRecorder(file, format, commandsPerFrame, 100));
+                System.out.println("Recording one frame every " + commandsPerFrame + " commands to " + file);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
     }
- // Logs a command and saves it automatically to the history
-    private void logCommand(String val) {
-        commandHistory.add(val);  // Add to history list
-        saveAuto();               // Auto-save to file
+
+    // Starts capturing frames from the current canvas; call on the execution thread
+    public void startRecording(AnimationRecorder animation) throws InterruptedException {
+        recorder = animation;
+        animation.start(getBufferedImage(), displayList);
     }
 
-    // Executes drawing functions that take one int parameter (like square, circle, etc.)
-    private void drawShapeWithOneParam(String val, String param, java.util.function.IntConsumer shapeFunction) {
+    // Finishes the recording and returns its summary; call on the execution thread
+    public String stopRecording() throws IOException {
+        AnimationRecorder animation = recorder;
+        recorder = null;
         try {
-            int size = Integer.parseInt(param);  // Parse the shape size
-            if (size <= 0) {
-                showError("Parameter must be positive.");
-                return;
-            }
-
-            shapeFunction.accept(size);  // Call the actual drawing function
-            logCommand(val);             // Log command after execution
-        } catch (NumberFormatException e) {
-            showError("Invalid number format."); // Handle wrong input (e.g., "abc")
+            return animation.stop(getBufferedImage(), displayList);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while finishing the recording");
         }
     }
 
+    public AnimationRecorder getRecorder() {
+        return recorder;
+    }
+
+    private static boolean isRecordingCommand(int op) {
+        return op == Opcodes.RECORD || op == Opcodes.RECORDFRAMES || op == Opcodes.STOPRECORD;
+    }
+
     // Handles the "clear" command with a prompt to save changes
-    private void handleClear(String val) {
-        if (commandHistory.isEmpty()) {
+    private void handleClear(CharSequence val) {
+        if (commandHistory.isEmpty() || noDialogs() || replaying) {
             clear();           // If no commands in history, just clear directly
             logCommand(val);
             return;
         }
 
-        // Ask user if they want to save before clearing
-        int choice = JOptionPane.showConfirmDialog(
+        // Ask user if they want to save before clearing; later commands wait for the answer
+        String command = val.toString();
+        ask(() -> JOptionPane.showConfirmDialog(
             null,
             "Save changes before clearing?",
             "Confirm",
             JOptionPane.YES_NO_CANCEL_OPTION
-        );
+        ), choice -> {
+            if (choice == JOptionPane.YES_OPTION) {
+                saveCommands(commandHistory.snapshot());  // Save command history as it was
+                clear();
+                logCommand(command);
+            } else if (choice == JOptionPane.NO_OPTION) {
+                clear();
+                logCommand(command);
+            }
+            // If CANCEL, do nothing
+        });
+    }
 
-        if (choice == JOptionPane.YES_OPTION) {
-            saveCommands(commandHistory);  // Save command history
-            clear();
-            logCommand(val);
-        } else if (choice == JOptionPane.NO_OPTION) {
-            clear();
-            logCommand(val);
+    // ========================== Undo / Redo ============================
+
+    // Periodic undo checkpoints (a canvas copy every 50 commands); headless jobs that
+    // never undo can turn them off, undo then replays from the start
+    public void setUndoCheckpoints(boolean enabled) {
+        undoManager.setCheckpointing(enabled);
+    }
+
+    public void undo() {
+        String undone;
+        beginBatch();
+        try {
+            undone = undoManager.undo();
+        } finally {
+            endBatch();
         }
-        // If CANCEL, do nothing
+        if (undone == null) {
+            showInfo("Nothing to undo.");
+            return;
+        }
+        commandHistory.removeLast(undone);
+        appendToJournal("undo");  // So the journal still replays to the same drawing
+        repaint();
+    }
+
+    public void redo() {
+        String redone = undoManager.redo();
+        if (redone == null) {
+            showInfo("Nothing to redo.");
+            return;
+        }
+        Instruction in = new Instruction();
+        CommandCompiler.compile(redone, in);
+        if (in.op != Opcodes.RESET) commandHistory.add(redone);  // reset is never kept in history
+        appendToJournal("redo");
+        repaint();
+    }
+
+    public UndoManager getUndoManager() {
+        return undoManager;
+    }
+
+    private static boolean isUndoable(int op) {
+        switch (op) {
+            case Opcodes.MOVE:
+            case Opcodes.REVERSE:
+            case Opcodes.LEFT:
+            case Opcodes.RIGHT:
+            case Opcodes.SQUARE:
+            case Opcodes.CIRCLE:
+            case Opcodes.EQUILATERAL:
+            case Opcodes.TRIANGLE:
+            case Opcodes.PENUP:
+            case Opcodes.PENDOWN:
+            case Opcodes.PENWIDTH:
+            case Opcodes.BLUE:
+            case Opcodes.RED:
+            case Opcodes.GREEN:
+            case Opcodes.WHITE:
+            case Opcodes.PENCOLOR:
+            case Opcodes.PEN:
+            case Opcodes.RESET:
+            case Opcodes.CLEAR:
+            case Opcodes.NAME:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Approximate heap held by this canvas: image, display list, undo checkpoints and commands
+    public long estimatedBytes() {
+        BufferedImage canvas = getBufferedImage();
+        return 4L * canvas.getWidth() * canvas.getHeight() + displayList.estimatedBytes()
+                + undoManager.getUsedBytes();
+    }
+
+    // Deletes what a headless canvas keeps on disk (spilled command history) once a job
+    // or batch is done with it; the canvas must not be used afterwards
+    public void dispose() {
+        commandHistory.close();
+    }
+
+    public TurtleState currentTurtle() {
+        return new TurtleState(xPos, yPos, getDirection(), getPenState(), getPenColour().getRGB(), strokeWidth);
+    }
+
+    // Captures and restores checkpoints of this canvas for the UndoManager
+    private class UndoHost implements UndoManager.Host {
+
+        @Override
+        public UndoManager.Checkpoint capture() {
+            return new UndoManager.Checkpoint(currentTurtle(), copyImage(getBufferedImage()),
+                    displayList.size(), displayList.generation());
+        }
+
+        @Override
+        public void restore(UndoManager.Checkpoint checkpoint) {
+            Graphics2D g = (Graphics2D) getGraphicsContext().create();
+            g.setComposite(AlphaComposite.Src);
+            g.drawImage(checkpoint.getCanvas(), 0, 0, null);
+            g.dispose();
+
+            TurtleState turtle = checkpoint.getTurtle();
+            xPos = turtle.x;
+            yPos = turtle.y;
+            pointTurtle(turtle.direction);
+            if (turtle.penDown) drawOn();
+            else drawOff();
+            setPenColour(new Color(turtle.colour, true));
+            setStroke(turtle.stroke);
+
+            if (checkpoint.getDisplayListGeneration() == displayList.generation()) {
+                displayList.truncate(checkpoint.getDisplayListSize());
+            } else {
+                displayList.setBackground(copyImage(checkpoint.getCanvas()));  // Cleared since; keep it as raster
+            }
+        }
+
+        @Override
+        public void replay(String command) {
+            replaying = true;
+            try {
+                evaluate(command);
+            } finally {
+                replaying = false;
+            }
+        }
+    }
+
+    // ========================== Execution Thread ============================
+
+    // In the GUI every command runs on one execution thread that owns the turtle and the
+    // canvas. The event thread only submits commands, paints and shows dialogs, so a long
+    // load never freezes the window. Headless instances run on the caller's thread.
+
+    private boolean onExecutionThread() {
+        return executor == null || Thread.currentThread() == executionThread;
+    }
+
+    // Runs task on the execution thread: right away if already there, otherwise queued
+    public void submit(Runnable task) {
+        if (onExecutionThread()) {
+            task.run();
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();  // Keep the thread alive for the next command
+            }
+        });
+    }
+
+    // Runs task on the execution thread and waits for it to finish
+    public void runAndWait(Runnable task) throws InterruptedException {
+        if (onExecutionThread()) {
+            task.run();
+            return;
+        }
+        try {
+            executor.submit(task).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    // Shows a dialog on the event thread and continues with the answer. On the execution
+    // thread it waits for the answer and continues right there, so a clear, save or load
+    // inside a file or script still runs in order; the canvas lock is let go meanwhile so
+    // the window keeps painting. From any other thread (menus on the event thread) the
+    // answer is queued on the execution thread. Headless instances never get here:
+    // commands that need dialogs are rejected first.
+    private <T> void ask(Supplier<T> dialog, Consumer<T> then) {
+        if (executor == null) {
+            then.accept(dialog.get());
+            return;
+        }
+        if (!onExecutionThread()) {
+            SwingUtilities.invokeLater(() -> {
+                T answer = dialog.get();
+                submit(() -> then.accept(answer));
+            });
+            return;
+        }
+
+        CompletableFuture<T> answer = new CompletableFuture<>();
+        SwingUtilities.invokeLater(() -> {
+            try {
+                answer.complete(dialog.get());
+            } catch (RuntimeException e) {
+                answer.completeExceptionally(e);
+            }
+        });
+        long start = System.nanoTime();
+        int holds = canvasLock.getHoldCount();
+        for (int i = 0; i < holds; i++) canvasLock.unlock();
+        T result;
+        try {
+            result = answer.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            for (int i = 0; i < holds; i++) canvasLock.lock();
+            phaseDone(CommandStats.DIALOG, start);
+        }
+        then.accept(result);
+    }
+
+    // Message dialogs are only shown, never waited for, from the execution thread
+    private void showMessage(Object message, String title, int type) {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null, message, title, type));
+            return;
+        }
+        long start = System.nanoTime();
+        JOptionPane.showMessageDialog(null, message, title, type);
+        phaseDone(CommandStats.DIALOG, start);
+    }
+
+    // ========================== Statistics ============================
+
+    // Records time since start for a phase that is not part of drawing
+    private void phaseDone(int phase, long start) {
+        long nanos = System.nanoTime() - start;
+        stats.recordPhase(phase, nanos);
+        excludedNanos += nanos;
+    }
+
+    private void showStats() {
+        String report = stats.format() + "\n" + commandHistory.describe() + "\n";
+        if (noDialogs()) {
+            System.out.println(report);
+            return;
+        }
+        JTextArea area = new JTextArea(report);
+        area.setEditable(false);
+        area.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        showMessage(new JScrollPane(area), "Command Statistics", JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    public CommandStats getStats() {
+        return stats;
+    }
+
+    // Times painting, which runs on the event thread apart from the commands
+    @Override
+    public void paintComponent(Graphics g) {
+        long start = System.nanoTime();
+        boolean locked = false;
+        if (canvasLock != null) {  // null while LBUGraphics constructs
+            try {
+                // Wait briefly for the running command to finish; a very long one is painted part-way
+                locked = canvasLock.tryLock(50, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            super.paintComponent(g);
+        } finally {
+            if (locked) canvasLock.unlock();
+        }
+        if (stats != null) stats.recordPhase(CommandStats.REPAINT, System.nanoTime() - start);  // null while LBUGraphics constructs
+    }
+
+    // ========================== Repaint Batching ============================
+
+    // Suppresses repaints until endBatch(); they are merged into occasional frames instead
+    public void beginBatch() {
+        repaintBatcher.begin();
+    }
+
+    public void endBatch() {
+        if (repaintBatcher.end()) paintFrame();
+    }
+
+    private void batchCommandDone() {
+        if (repaintBatcher.commandDone()) paintFrame();
+    }
+
+    private void paintFrame() {
+        super.repaint(0, 0, 0, getWidth(), getHeight());
+    }
+
+    public RepaintBatcher getRepaintBatcher() {
+        return repaintBatcher;
+    }
+
+    // Every repaint() variant ends up here; swallow them while a batch runs
+    @Override
+    public void repaint(long tm, int x, int y, int width, int height) {
+        if (repaintBatcher != null && !repaintBatcher.allowRepaint()) return;  // null while LBUGraphics constructs
+        super.repaint(tm, x, y, width, height);
     }
 
     // ========================== Utility Methods ============================
 
     private void showError(String msg) {
-        JOptionPane.showMessageDialog(null, msg, "Error", JOptionPane.ERROR_MESSAGE);
+        errorCount++;
+        if (capturing) {
+            if (capturedError == null) capturedError = msg;
+            return;
+        }
+        if (headless || errorsPreviewed) {
+            System.err.println("Error: " + msg);
+            return;
+        }
+        showMessage(msg, "Error", JOptionPane.ERROR_MESSAGE);
     }
 
     private void showInfo(String msg) {
-        JOptionPane.showMessageDialog(null, msg, "Info", JOptionPane.INFORMATION_MESSAGE);
+        if (noDialogs()) {
+            System.out.println(msg);
+            return;
+        }
+        showMessage(msg, "Info", JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    // True while modal dialogs must not be opened
+    private boolean noDialogs() {
+        return headless || capturing;
+    }
+
+    // Pixel copy of an image, independent of later drawing on the original
+    static BufferedImage copyImage(BufferedImage source) {
+        BufferedImage copy = new BufferedImage(source.getColorModel(), source.copyData(null),
+                source.isAlphaPremultiplied(), null);
+        return copy;
+    }
+
+    // True for commands that open dialogs or capture the screen
+    private static boolean needsWindow(int op) {
+        switch (op) {
+            case Opcodes.SAVE:
+            case Opcodes.LOAD:
+            case Opcodes.SCREENSHOT:
+            case Opcodes.IMAGE:
+            case Opcodes.HELP:
+            case Opcodes.RECORD:
+            case Opcodes.RECORDFRAMES:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public boolean isHeadless() {
+        return headless;
+    }
+
+    public int getErrorCount() {
+        return errorCount;
     }
     
 
@@ -604,6 +1652,13 @@ public class GraphicsSystem extends LBUGraphics {
         		        "reset: Moves the turtle back to the starting position, facing downward, without clearing the drawing\n"+
         		        "save: Provides options to save commands or save image\n"+
         		        "load: Provides options to load commands or load image\n"+
+        		        "Command files saved with the .lbh extension use the compact binary format\n"+
+        		        "undo: Takes back the last drawing command (Ctrl+Z)\n"+
+        		        "redo: Puts back the last undone command (Ctrl+Y)\n"+
+        		        "stats: Shows call counts, errors and timings for each command\n"+
+        		        "record N: Records the drawing to an animated GIF, one frame every N commands\n"+
+        		        "recordframes N: Records numbered PNG frames into a folder, one every N commands\n"+
+        		        "stoprecord: Finishes the recording\n"+
 
         		        "DRAWINGS\n"+
         		        "--------\n"+
@@ -620,6 +1675,13 @@ public class GraphicsSystem extends LBUGraphics {
         		        "left DEGREES: Turns the turtle to the left by given degrees\n"+
         		        "right DEGREES: Turns the turtle to the right by given degrees\n"+
 
+        		        "SCRIPTING\n"+
+        		        "---------\n"+
+        		        "repeat N [ commands ]: Runs the commands N times\n"+
+        		        "to NAME :A :B commands end: Defines a procedure with parameters\n"+
+        		        "make NAME EXPR: Sets a variable, used as :NAME in expressions (+ - * / %)\n"+
+        		        "Scripts with loops and procedures can be loaded from .lgo files\n"+
+
         		        "HELP\n"+
         		        "----\n"+
         		        "help: Displays this help menu!"
@@ -628,12 +1690,21 @@ public class GraphicsSystem extends LBUGraphics {
         textArea.setEditable(false);
         textArea.setFont(new Font("Monospaced", Font.PLAIN, 12));
         JScrollPane scrollPane = new JScrollPane(textArea);
-        JOptionPane.showMessageDialog(null, scrollPane, "Help", JOptionPane.INFORMATION_MESSAGE);
+        showMessage(scrollPane, "Help", JOptionPane.INFORMATION_MESSAGE);
     }
 
     // ========================== Entry Point ============================
 
+    // --server [port] also accepts commands from local tools (see CommandServer)
     public static void main(String[] args) {
-        new GraphicsSystem();
+        GraphicsSystem system = new GraphicsSystem();
+        if (args.length > 0 && args[0].equals("--server")) {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : CommandServer.DEFAULT_PORT;
+            try {
+                new CommandServer(system, port, CommandServer.DEFAULT_MAX_QUEUED).start();
+            } catch (IOException e) {
+                System.err.println("Could not start command server: " + e.getMessage());
+            }
+        }
     }
 }
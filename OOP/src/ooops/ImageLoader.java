@@ -0,0 +1,191 @@
+package ooops;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.stream.ImageInputStream;
+
+// Decodes images for the canvas. Large files are subsampled while decoding (every n-th
+// pixel of every n-th row) down to the smallest size that still covers the canvas, so
+// a photo never exists at full resolution in memory. Decoded images are kept in an LRU
+// cache bounded by bytes and keyed by path, modification time and length, so loading
+// the same unchanged file again only copies the cached pixels.
+public class ImageLoader {
+
+    private static final long UPDATE_INTERVAL_NANOS = 50_000_000L;  // Between progressive updates
+
+    private static final class Key {
+        final String path;
+        final long modified;
+        final long length;
+        final int width;
+        final int height;
+
+        Key(File file, int width, int height) throws IOException {
+            this.path = file.getCanonicalPath();
+            this.modified = file.lastModified();
+            this.length = file.length();
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return path.equals(k.path) && modified == k.modified && length == k.length
+                    && width == k.width && height == k.height;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, modified, length, width, height);
+        }
+    }
+
+    private final long maxBytes;
+    private final LinkedHashMap<Key, BufferedImage> images = new LinkedHashMap<>(16, 0.75f, true);  // Access order
+    private long usedBytes;
+    private long hits;
+    private long misses;
+
+    public ImageLoader(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    // Decodes file to cover at least width x height pixels. If progress is given, it gets
+    // the partly decoded image as passes and rows arrive (progressive JPEG, interlaced
+    // PNG); the image passed to it is only valid during the call. The returned image is
+    // the caller's own copy.
+    public BufferedImage load(File file, int width, int height, Consumer<BufferedImage> progress) throws IOException {
+        Key key = new Key(file, width, height);
+        BufferedImage cached = images.get(key);
+        if (cached != null) {
+            hits++;
+            return GraphicsSystem.copyImage(cached);
+        }
+        misses++;
+
+        BufferedImage image = decode(file, width, height, progress);
+        long bytes = bytes(image);
+        if (bytes <= maxBytes) {
+            BufferedImage old = images.put(key, image);
+            if (old != null) usedBytes -= bytes(old);
+            usedBytes += bytes;
+
+            // Evict least recently used images until the budget is met
+            Iterator<Map.Entry<Key, BufferedImage>> eldest = images.entrySet().iterator();
+            while (usedBytes > maxBytes && eldest.hasNext()) {
+                usedBytes -= bytes(eldest.next().getValue());
+                eldest.remove();
+            }
+            return GraphicsSystem.copyImage(image);
+        }
+        return image;
+    }
+
+    private static BufferedImage decode(File file, int width, int height, Consumer<BufferedImage> progress)
+            throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            if (input == null) throw new IOException("Cannot open " + file.getName());
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) throw new IOException("Unsupported image format: " + file.getName());
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);  // Forward only, no metadata
+                ImageReadParam param = reader.getDefaultReadParam();
+                int step = subsampling(reader.getWidth(0), reader.getHeight(0), width, height);
+                if (step > 1) param.setSourceSubsampling(step, step, 0, 0);
+                if (progress != null) reader.addIIOReadUpdateListener(new Updates(progress));
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // Largest step that still leaves at least width x height pixels; 1 for small images
+    static int subsampling(int sourceWidth, int sourceHeight, int width, int height) {
+        if (width <= 0 || height <= 0) return 1;
+        return Math.max(1, Math.min(sourceWidth / width, sourceHeight / height));
+    }
+
+    private static long bytes(BufferedImage image) {
+        return 4L * image.getWidth() * image.getHeight();
+    }
+
+    // Forwards the image being decoded at most every UPDATE_INTERVAL_NANOS, and after every pass
+    private static final class Updates implements IIOReadUpdateListener {
+        private final Consumer<BufferedImage> progress;
+        private long last = System.nanoTime();
+
+        Updates(Consumer<BufferedImage> progress) {
+            this.progress = progress;
+        }
+
+        @Override
+        public void imageUpdate(ImageReader source, BufferedImage image, int minX, int minY, int width, int height,
+                                int periodX, int periodY, int[] bands) {
+            long now = System.nanoTime();
+            if (now - last < UPDATE_INTERVAL_NANOS) return;
+            last = now;
+            progress.accept(image);
+        }
+
+        @Override
+        public void passComplete(ImageReader source, BufferedImage image) {
+            last = System.nanoTime();
+            progress.accept(image);
+        }
+
+        @Override
+        public void passStarted(ImageReader source, BufferedImage image, int pass, int minPass, int maxPass,
+                                int minX, int minY, int periodX, int periodY, int[] bands) {
+        }
+
+        @Override
+        public void thumbnailUpdate(ImageReader source, BufferedImage theThumbnail, int minX, int minY, int width,
+                                    int height, int periodX, int periodY, int[] bands) {
+        }
+
+        @Override
+        public void thumbnailPassStarted(ImageReader source, BufferedImage theThumbnail, int pass, int minPass,
+                                         int maxPass, int minX, int minY, int periodX, int periodY, int[] bands) {
+        }
+
+        @Override
+        public void thumbnailPassComplete(ImageReader source, BufferedImage theThumbnail) {
+        }
+    }
+
+    public void clear() {
+        images.clear();
+        usedBytes = 0;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public int getSize() {
+        return images.size();
+    }
+
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+}
@@ -0,0 +1,183 @@
+package ooops;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.event.IIOWriteProgressListener;
+import javax.imageio.stream.ImageOutputStream;
+
+// Encodes and writes canvas snapshots on background threads, so saving never blocks
+// the caller for longer than it takes to copy the pixels. Several saves can be queued;
+// each one reports progress through its Job.
+public class ImageSaveService {
+
+    // One queued or running save
+    public static final class Job {
+        private final File file;
+        private final String format;
+        private final List<Job> pending;     // The service's queue, left when done or cancelled
+        private volatile float progress;     // 0..100
+        private volatile Future<?> future;
+
+        private Job(File file, String format, List<Job> pending) {
+            this.file = file;
+            this.format = format;
+            this.pending = pending;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public String getFormat() {
+            return format;
+        }
+
+        public float getProgress() {
+            return progress;
+        }
+
+        public boolean isDone() {
+            return future != null && future.isDone();
+        }
+
+        // A job cancelled before it starts never runs, so it leaves the queue here too
+        public void cancel() {
+            if (future != null) future.cancel(true);
+            pending.remove(this);
+        }
+    }
+
+    private final ExecutorService executor;
+    private final List<Job> jobs = new CopyOnWriteArrayList<>();
+
+    private volatile float pngCompressionQuality = 0.75f;  // ImageWriteParam scale: lower = smaller, slower
+    private volatile float jpegQuality = 0.9f;
+
+    public ImageSaveService(int threads) {
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "image-save");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // Cheap pixel copy of the canvas taken on the calling thread; the copy is what gets encoded
+    public static BufferedImage snapshot(BufferedImage canvas) {
+        return GraphicsSystem.copyImage(canvas);
+    }
+
+    // Queues snapshot to be written as format ("png" or "jpg") to file. onDone receives
+    // the job and the failure, or null on success, on the saving thread.
+    public Job save(BufferedImage snapshot, String format, File file, BiConsumer<Job, Exception> onDone) {
+        Job job = new Job(file, format, jobs);
+        jobs.add(job);
+        job.future = executor.submit(() -> {
+            Exception failure = null;
+            try {
+                write(snapshot, format, file, job);
+            } catch (Exception e) {
+                failure = e;
+            } finally {
+                jobs.remove(job);
+            }
+            if (onDone != null) onDone.accept(job, failure);
+        });
+        return job;
+    }
+
+    // Saves that are queued or still running
+    public List<Job> getPendingJobs() {
+        return new ArrayList<>(jobs);
+    }
+
+    public void setPngCompressionQuality(float quality) {
+        pngCompressionQuality = quality;
+    }
+
+    public void setJpegQuality(float quality) {
+        jpegQuality = quality;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    // ========================== Encoding ============================
+
+    private void write(BufferedImage image, String format, File file, Job job) throws IOException {
+        boolean jpeg = format.equals("jpg") || format.equals("jpeg");
+        if (jpeg && image.getColorModel().hasAlpha()) image = dropAlpha(image);  // JPEG has no alpha channel
+
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext()) throw new IOException("No writer for " + format);
+        ImageWriter writer = writers.next();
+
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (param.canWriteCompressed()) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            if (param.getCompressionType() == null) param.setCompressionType(param.getCompressionTypes()[0]);
+            param.setCompressionQuality(jpeg ? jpegQuality : pngCompressionQuality);
+        }
+
+        writer.addIIOWriteProgressListener(new IIOWriteProgressListener() {
+            @Override public void imageStarted(ImageWriter source, int imageIndex) { job.progress = 0; }
+            @Override public void imageProgress(ImageWriter source, float percentageDone) { job.progress = percentageDone; }
+            @Override public void imageComplete(ImageWriter source) { job.progress = 100; }
+            @Override public void thumbnailStarted(ImageWriter source, int imageIndex, int thumbnailIndex) { }
+            @Override public void thumbnailProgress(ImageWriter source, float percentageDone) { }
+            @Override public void thumbnailComplete(ImageWriter source) { }
+            @Override public void writeAborted(ImageWriter source) { }
+        });
+
+        // Encoded to a new file next to the target and moved over it when complete, so a
+        // failed or cancelled save leaves any existing file as it was
+        File dir = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile(file.getName() + ".", ".tmp", dir);
+        try {
+            try (ImageOutputStream out = ImageIO.createImageOutputStream(temp)) {
+                if (out == null) throw new IOException("Cannot write " + temp);
+                writer.setOutput(out);
+                writer.write(null, new IIOImage(image, null, null), param);
+            } finally {
+                writer.dispose();
+            }
+            if (Thread.currentThread().isInterrupted()) throw new IOException("Save of " + file + " cancelled");
+            replace(temp, file);
+        } finally {
+            temp.delete();  // Gone already once moved
+        }
+        job.progress = 100;
+    }
+
+    private static void replace(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static BufferedImage dropAlpha(BufferedImage image) {
+        BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = rgb.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return rgb;
+    }
+}
@@ -0,0 +1,36 @@
+package ooops;
+
+// One compiled command: an opcode with up to three int arguments.
+// Instances are reused between commands so that replaying a script allocates nothing.
+public final class Instruction {
+
+    public static final int MAX_ARGS = 3;
+
+    public int op = Opcodes.INVALID;             // Kept for a known keyword even if compilation failed
+    public int argc;                            // Number of arguments actually given
+    public final int[] args = new int[MAX_ARGS];
+    public String error;                        // Message to show when compilation failed
+
+    public void set(int op, int argc) {
+        this.op = op;
+        this.argc = argc;
+        this.error = null;
+    }
+
+    public void fail(String message) {
+        this.op = Opcodes.INVALID;
+        this.argc = 0;
+        this.error = message;
+    }
+
+    public boolean isValid() {
+        return error == null;
+    }
+
+    public void copyFrom(Instruction other) {
+        op = other.op;
+        argc = other.argc;
+        error = other.error;
+        System.arraycopy(other.args, 0, args, 0, MAX_ARGS);
+    }
+}
@@ -0,0 +1,102 @@
+package ooops;
+
+// Numeric opcodes for the command keywords, plus an allocation-free keyword lookup.
+public final class Opcodes {
+
+    public static final int INVALID = -1;
+
+    public static final int MOVE = 0;
+    public static final int REVERSE = 1;
+    public static final int LEFT = 2;
+    public static final int RIGHT = 3;
+    public static final int PENUP = 4;
+    public static final int PENDOWN = 5;
+    public static final int PENCOLOR = 6;
+    public static final int PENWIDTH = 7;
+    public static final int SQUARE = 8;
+    public static final int CIRCLE = 9;
+    public static final int TRIANGLE = 10;
+    public static final int EQUILATERAL = 11;
+    public static final int RESET = 12;
+    public static final int CLEAR = 13;
+    public static final int BLUE = 14;
+    public static final int RED = 15;
+    public static final int GREEN = 16;
+    public static final int WHITE = 17;
+    public static final int PEN = 18;
+    public static final int ABOUT = 19;
+    public static final int NAME = 20;
+    public static final int SAVE = 21;
+    public static final int LOAD = 22;
+    public static final int SCREENSHOT = 23;
+    public static final int IMAGE = 24;
+    public static final int HELP = 25;
+    public static final int NEPAL = 26;
+    public static final int UNDO = 27;
+    public static final int REDO = 28;
+    public static final int STATS = 29;
+    public static final int RECORD = 30;
+    public static final int RECORDFRAMES = 31;
+    public static final int STOPRECORD = 32;
+
+    // Keyword for each opcode, indexed by opcode
+    private static final String[] NAMES = {
+        "move", "reverse", "left", "right", "penup", "pendown", "pencolor", "penwidth",
+        "square", "circle", "triangle", "equilateral", "reset", "clear",
+        "blue", "red", "green", "white", "pen", "about", "name", "save", "load",
+        "screenshot", "image", "help", "nepal", "undo", "redo", "stats",
+        "record", "recordframes", "stoprecord"
+    };
+
+    // Open-addressing table of opcode + 1 (0 = empty slot)
+    private static final int TABLE_MASK = 63;
+    private static final int[] TABLE = new int[TABLE_MASK + 1];
+
+    static {
+        for (int op = 0; op < NAMES.length; op++) {
+            int slot = slot(hash(NAMES[op], 0, NAMES[op].length()));
+            while (TABLE[slot] != 0) slot = (slot + 1) & TABLE_MASK;
+            TABLE[slot] = op + 1;
+        }
+    }
+
+    private Opcodes() {
+    }
+
+    public static int count() {
+        return NAMES.length;
+    }
+
+    public static String name(int op) {
+        return NAMES[op];
+    }
+
+    // Opcode for the keyword in text[start, end), or INVALID
+    public static int lookup(CharSequence text, int start, int end) {
+        int slot = slot(hash(text, start, end));
+        while (TABLE[slot] != 0) {
+            int op = TABLE[slot] - 1;
+            if (matches(NAMES[op], text, start, end)) return op;
+            slot = (slot + 1) & TABLE_MASK;
+        }
+        return INVALID;
+    }
+
+    private static int hash(CharSequence text, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) h = 31 * h + text.charAt(i);
+        return h;
+    }
+
+    private static int slot(int h) {
+        return (h ^ (h >>> 16)) & TABLE_MASK;
+    }
+
+    private static boolean matches(String name, CharSequence text, int start, int end) {
+        if (name.length() != end - start) return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != text.charAt(start + i)) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,370 @@
+package ooops;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.imageio.ImageIO;
+
+// Renders many command files at once on a pool of worker threads. Every job gets its
+// own headless GraphicsSystem, so turtle, canvas, display list and history are never
+// shared between jobs. Time and memory limits are checked between commands: a job that
+// runs past its timeout, or whose canvas (image, display list, undo checkpoints) grows
+// past its memory limit, is stopped and reported. Each finished canvas is written as a
+// PNG thumbnail.
+//
+// Usage: java ooops.RenderFarm <script dir> <output dir> [workers] [timeout seconds] [thumbnail width]
+public class RenderFarm implements Closeable {
+
+    public enum Status {
+        OK,        // Ran to the end without errors
+        ERRORS,    // Ran to the end; some commands failed
+        TIMEOUT,   // Stopped after the time limit
+        MEMORY,    // Stopped at the memory limit (or out of heap)
+        FAILED     // Could not be read or rendered
+    }
+
+    public static final class JobResult {
+        private final File script;
+        private final Status status;
+        private final long commands;
+        private final long errors;
+        private final long nanos;
+        private final String message;   // First error, or why the job stopped; null if none
+
+        JobResult(File script, Status status, long commands, long errors, long nanos, String message) {
+            this.script = script;
+            this.status = status;
+            this.commands = commands;
+            this.errors = errors;
+            this.nanos = nanos;
+            this.message = message;
+        }
+
+        public File getScript() {
+            return script;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public long getCommands() {
+            return commands;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-8s %-30s %8d commands %6d errors %9.1f ms%s", status, script.getName(), commands,
+                    errors, nanos / 1e6, message == null ? "" : "  " + message);
+        }
+    }
+
+    public static final class Summary {
+        private final List<JobResult> results;
+        private final long wallNanos;
+        private final int workers;
+
+        Summary(List<JobResult> results, long wallNanos, int workers) {
+            this.results = results;
+            this.wallNanos = wallNanos;
+            this.workers = workers;
+        }
+
+        // In the order the scripts were given
+        public List<JobResult> getResults() {
+            return results;
+        }
+
+        public long count(Status status) {
+            return results.stream().filter(r -> r.status == status).count();
+        }
+
+        // True if every job ran to the end (command errors allowed)
+        public boolean isComplete() {
+            return count(Status.OK) + count(Status.ERRORS) == results.size();
+        }
+
+        public String format() {
+            long commands = results.stream().mapToLong(r -> r.commands).sum();
+            long busy = results.stream().mapToLong(r -> r.nanos).sum();
+            double seconds = wallNanos / 1e9;
+
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%d jobs on %d workers in %.1f s: %.1f jobs/s, %.0f commands/s, %.1f jobs running on average%n",
+                    results.size(), workers, seconds, seconds > 0 ? results.size() / seconds : 0,
+                    seconds > 0 ? commands / seconds : 0, wallNanos > 0 ? (double) busy / wallNanos : 0));
+            for (Status status : Status.values()) sb.append(String.format("  %-8s %d%n", status, count(status)));
+
+            List<JobResult> problems = new ArrayList<>();
+            for (JobResult r : results) if (r.status != Status.OK && r.status != Status.ERRORS) problems.add(r);
+            if (!problems.isEmpty()) {
+                sb.append("Stopped or failed:\n");
+                for (JobResult r : problems) sb.append("  ").append(r).append('\n');
+            }
+
+            sb.append("Slowest:\n");
+            results.stream().sorted(Comparator.comparingLong((JobResult r) -> r.nanos).reversed()).limit(5)
+                    .forEach(r -> sb.append("  ").append(r).append('\n'));
+            return sb.toString();
+        }
+    }
+
+    // Thrown out of a job's command loop when it goes over a limit
+    private static final class LimitExceeded extends RuntimeException {
+        final Status status;
+
+        LimitExceeded(Status status, String message) {
+            super(message, null, false, false);
+            this.status = status;
+        }
+    }
+
+    private static final long STOP_GRACE_NANOS = 1_000_000_000L;  // For a job to stop itself at its deadline
+
+    private final int workers;
+    private final long timeoutNanos;
+    private final long maxBytes;
+    private final int thumbnailWidth;    // 0 = full canvas size
+    private final ExecutorService pool;
+
+    public RenderFarm(int workers, long timeoutMillis, long maxBytes, int thumbnailWidth) {
+        this.workers = Math.max(1, workers);
+        this.timeoutNanos = timeoutMillis * 1_000_000L;
+        this.maxBytes = maxBytes;
+        this.thumbnailWidth = thumbnailWidth;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(this.workers, r -> {
+            Thread t = new Thread(r, "render-worker-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // Renders every script into outputDir as <script name>.png and waits for all of them
+    public Summary render(List<File> scripts, File outputDir) throws InterruptedException {
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create " + outputDir);
+        }
+        long start = System.nanoTime();
+        List<Future<JobResult>> futures = new ArrayList<>(scripts.size());
+        AtomicLongArray started = new AtomicLongArray(scripts.size());  // nanoTime a job began, 0 while queued
+        for (int i = 0; i < scripts.size(); i++) {
+            File script = scripts.get(i);
+            File output = new File(outputDir, baseName(script) + ".png");
+            int job = i;
+            futures.add(pool.submit(() -> {
+                started.set(job, System.nanoTime());
+                return runJob(script, output);
+            }));
+        }
+
+        List<JobResult> results = new ArrayList<>(scripts.size());
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                results.add(await(futures.get(i), started, i, scripts.get(i)));
+            } catch (ExecutionException e) {
+                results.add(new JobResult(scripts.get(i), Status.FAILED, 0, 0, 0, String.valueOf(e.getCause())));
+            }
+        }
+        return new Summary(results, System.nanoTime() - start, workers);
+    }
+
+    // Waits for one job. Jobs check their own deadline between commands and loop
+    // iterations; one still running STOP_GRACE after it is cancelled (interrupted) and
+    // reported as timed out, so render never waits longer than the limits allow.
+    private JobResult await(Future<JobResult> future, AtomicLongArray started, int job, File script)
+            throws InterruptedException, ExecutionException {
+        if (timeoutNanos <= 0) return future.get();
+        while (true) {
+            long begun = started.get(job);
+            long wait = begun == 0 ? timeoutNanos : begun + timeoutNanos + STOP_GRACE_NANOS - System.nanoTime();
+            try {
+                return future.get(Math.max(0, wait), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                if (begun == 0) continue;  // Still queued behind other jobs
+                future.cancel(true);
+                return new JobResult(script, Status.TIMEOUT, 0, 0, System.nanoTime() - begun,
+                        "Did not stop at the " + timeoutNanos / 1_000_000 + " ms limit; cancelled");
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    // ========================== Jobs ============================
+
+    private JobResult runJob(File script, File output) {
+        long start = System.nanoTime();
+        long deadline = start + timeoutNanos;
+        GraphicsSystem canvas = new GraphicsSystem(true);
+        canvas.setUndoCheckpoints(false);  // Scripts seldom undo; not worth a canvas copy every 50 commands
+        long[] counts = new long[2];   // Commands, errors
+        String[] firstError = new String[1];
+
+        // Runs one compiled command after checking the limits
+        Script.CommandSink sink = (in, text) -> {
+            if (timeoutNanos > 0 && System.nanoTime() > deadline) {
+                throw new LimitExceeded(Status.TIMEOUT, "Timed out after " + timeoutNanos / 1_000_000 + " ms");
+            }
+            if (maxBytes > 0 && (counts[0] & 63) == 0 && canvas.estimatedBytes() > maxBytes) {
+                throw new LimitExceeded(Status.MEMORY, "Canvas grew past " + maxBytes / (1024 * 1024) + " MB");
+            }
+            counts[0]++;
+            String error = canvas.executeCaptured(in, text);
+            if (error != null) {
+                counts[1]++;
+                if (firstError[0] == null) firstError[0] = "command " + counts[0] + ": " + error;
+            }
+        };
+
+        Status status;
+        String message;
+        boolean outOfHeap = false;
+        try {
+            runScript(script, sink, timeoutNanos > 0 ? deadline : 0);
+            status = counts[1] == 0 ? Status.OK : Status.ERRORS;
+            message = firstError[0];
+        } catch (LimitExceeded e) {
+            status = e.status;
+            message = e.getMessage();
+        } catch (Script.TimeoutException e) {
+            status = Status.TIMEOUT;
+            message = "Timed out after " + timeoutNanos / 1_000_000 + " ms";
+        } catch (OutOfMemoryError e) {
+            outOfHeap = true;
+            status = Status.MEMORY;
+            message = "Out of heap";
+        } catch (IOException | RuntimeException e) {
+            status = Status.FAILED;
+            message = e.toString();
+        }
+
+        // Stopped jobs still get a thumbnail of how far they got, unless the heap ran out
+        if (!outOfHeap) {
+            try {
+                ImageIO.write(thumbnail(canvas.getBufferedImage()), "png", output);
+            } catch (IOException | RuntimeException e) {
+                if (status == Status.OK || status == Status.ERRORS) {
+                    status = Status.FAILED;
+                    message = "Could not write " + output.getName() + ": " + e;
+                }
+            }
+        }
+        canvas.dispose();  // Deletes any history the job spilled to disk
+        return new JobResult(script, status, counts[0], counts[1], System.nanoTime() - start, message);
+    }
+
+    // Sends every command of script to sink: .lbh files record by record, .lgo files as one
+    // script, anything else line by line (lines may themselves be repeat/to/make scripts).
+    // Scripts stop at deadline (System.nanoTime(), 0 = none) even when they draw nothing.
+    private static void runScript(File script, Script.CommandSink sink, long deadline) throws IOException {
+        String name = script.getName().toLowerCase();
+        ScriptCompiler scripts = new ScriptCompiler();  // Procedures stay within the job
+        if (BinaryHistory.isBinary(script)) {
+            BinaryHistory.read(script, sink::execute);
+        } else if (name.endsWith(".lgo")) {
+            scripts.compile(new String(Files.readAllBytes(script.toPath()), StandardCharsets.UTF_8)).run(sink, deadline);
+        } else {
+            Instruction in = new Instruction();
+            new ScriptReader(script).read((line, number) -> {
+                if (scripts.isScript(line)) {
+                    scripts.compile(line.toString()).run(sink, deadline);
+                } else {
+                    CommandCompiler.compile(line, in);
+                    sink.execute(in, line);
+                }
+            }, null, null);
+        }
+    }
+
+    // Scales the canvas down to thumbnailWidth, halving first so that no step skips pixels
+    private BufferedImage thumbnail(BufferedImage canvas) {
+        if (thumbnailWidth <= 0 || thumbnailWidth >= canvas.getWidth()) return canvas;
+        int targetHeight = Math.max(1, canvas.getHeight() * thumbnailWidth / canvas.getWidth());
+
+        BufferedImage image = canvas;
+        int w = canvas.getWidth(), h = canvas.getHeight();
+        do {
+            w = Math.max(thumbnailWidth, w / 2);
+            h = Math.max(targetHeight, h / 2);
+            BufferedImage step = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = step.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, 0, 0, w, h, null);
+            g.dispose();
+            image = step;
+        } while (w > thumbnailWidth);
+        return image;
+    }
+
+    private static String baseName(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    // ========================== Entry Point ============================
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 2) {
+            System.err.println("Usage: java ooops.RenderFarm <script dir> <output dir> [workers] [timeout seconds] [thumbnail width]");
+            System.exit(2);
+        }
+        System.setProperty("java.awt.headless", "true");  // Before any AWT class is initialised
+
+        File[] files = new File(args[0]).listFiles((dir, name) -> {
+            String lower = name.toLowerCase();
+            return lower.endsWith(".txt") || lower.endsWith(".lgo") || lower.endsWith(BinaryHistory.EXTENSION);
+        });
+        if (files == null) {
+            System.err.println("Not a directory: " + args[0]);
+            System.exit(2);
+        }
+        Arrays.sort(files);
+
+        int workers = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        long timeoutMillis = args.length > 3 ? Long.parseLong(args[3]) * 1000 : 60_000;
+        int width = args.length > 4 ? Integer.parseInt(args[4]) : 200;
+        long maxBytes = Runtime.getRuntime().maxMemory() / (2L * workers);  // Half the heap, shared out
+
+        Summary summary;
+        try (RenderFarm farm = new RenderFarm(workers, timeoutMillis, maxBytes, width)) {
+            summary = farm.render(Arrays.asList(files), new File(args[1]));
+        }
+        System.out.print(summary.format());
+        System.exit(summary.isComplete() ? 0 : 1);
+    }
+}
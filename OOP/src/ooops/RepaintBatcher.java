@@ -0,0 +1,102 @@
+package ooops;
+
+import java.awt.DisplayMode;
+import java.awt.GraphicsEnvironment;
+
+// Coalesces repaint requests while a script or burst of commands runs. Requests made
+// inside a batch are swallowed and turned into at most one frame per refresh interval
+// or per N commands, plus a final frame when the batch ends.
+public class RepaintBatcher {
+
+    private final int commandsPerFrame;
+    private final long frameIntervalNanos;
+
+    private int depth;                 // Nested begin() calls
+    private boolean pending;           // A repaint was requested since the last frame
+    private int commandsSinceFrame;
+    private long lastFrameNanos;
+
+    private long frames;               // Frames actually painted during batches
+    private long skipped;              // Repaint requests merged into those frames
+
+    public RepaintBatcher() {
+        this(256, 1_000_000_000L / refreshRate());
+    }
+
+    public RepaintBatcher(int commandsPerFrame, long frameIntervalNanos) {
+        this.commandsPerFrame = Math.max(1, commandsPerFrame);
+        this.frameIntervalNanos = frameIntervalNanos;
+    }
+
+    public void begin() {
+        if (depth++ == 0) {
+            pending = false;
+            commandsSinceFrame = 0;
+            lastFrameNanos = System.nanoTime();
+        }
+    }
+
+    // Ends a batch; returns true if a final frame has to be painted
+    public boolean end() {
+        if (depth == 0 || --depth > 0) return false;
+        if (!pending) return false;
+        frameEmitted();
+        return true;
+    }
+
+    public boolean isBatching() {
+        return depth > 0;
+    }
+
+    // Called for every repaint request; returns true if it should go through now
+    public boolean allowRepaint() {
+        if (depth == 0) return true;
+        pending = true;
+        skipped++;
+        return false;
+    }
+
+    // Called after each command in a batch; returns true if a frame is due
+    public boolean commandDone() {
+        if (depth == 0) return false;
+        commandsSinceFrame++;
+        if (!pending) return false;
+        if (commandsSinceFrame >= commandsPerFrame || System.nanoTime() - lastFrameNanos >= frameIntervalNanos) {
+            frameEmitted();
+            return true;
+        }
+        return false;
+    }
+
+    private void frameEmitted() {
+        frames++;
+        pending = false;
+        commandsSinceFrame = 0;
+        lastFrameNanos = System.nanoTime();
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getSkipped() {
+        return skipped;
+    }
+
+    public void resetCounters() {
+        frames = 0;
+        skipped = 0;
+    }
+
+    // Screen refresh rate in Hz, 60 if it cannot be determined
+    private static int refreshRate() {
+        if (GraphicsEnvironment.isHeadless()) return 60;
+        try {
+            int rate = GraphicsEnvironment.getLocalGraphicsEnvironment()
+                    .getDefaultScreenDevice().getDisplayMode().getRefreshRate();
+            return rate == DisplayMode.REFRESH_RATE_UNKNOWN ? 60 : rate;
+        } catch (RuntimeException e) {
+            return 60;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package ooops;
+
+// A compiled script: a tree of statements and integer expressions produced once by
+// ScriptCompiler and then executed directly, so loops never re-tokenize their body.
+public final class Script {
+
+    // Receives each drawing command the script produces, e.g. GraphicsSystem::execute
+    public interface CommandSink {
+        void execute(Instruction in, CharSequence text);
+    }
+
+    // Raised for compile errors and run-time errors such as division by zero
+    public static class ScriptException extends RuntimeException {
+        public ScriptException(String message) {
+            super(message);
+        }
+    }
+
+    // Raised when a run goes past its deadline (see run(CommandSink, long))
+    public static class TimeoutException extends ScriptException {
+        public TimeoutException(String message) {
+            super(message);
+        }
+    }
+
+    private static final int MAX_DEPTH = 1000;
+
+    private final Block body;
+    private final int[] globals;
+
+    Script(Block body, int[] globals) {
+        this.body = body;
+        this.globals = globals;
+    }
+
+    // Runs the script, sending every command it produces to sink
+    public void run(CommandSink sink) {
+        run(sink, 0);
+    }
+
+    // Like run(sink), but stops with a TimeoutException once System.nanoTime() passes
+    // deadline (0 = no deadline), even if the script draws nothing
+    public void run(CommandSink sink, long deadline) {
+        Context ctx = new Context(sink, globals);
+        ctx.deadline = deadline;
+        body.run(ctx);
+    }
+
+    // ========================== Run-time State ============================
+
+    static final class Context {
+        final CommandSink sink;
+        final int[] globals;
+        final Instruction scratch = new Instruction();
+        final StringBuilder text = new StringBuilder(32);
+        int depth;
+        long deadline;                 // System.nanoTime() limit, or 0
+        int steps;                     // Loop iterations and calls, to space out the clock reads
+
+        Context(CommandSink sink, int[] globals) {
+            this.sink = sink;
+            this.globals = globals;
+        }
+
+        // Called on every loop iteration and procedure call
+        void checkLimits() {
+            if (Thread.currentThread().isInterrupted()) throw new ScriptException("Script interrupted");
+            if (deadline != 0 && (++steps & 1023) == 0 && System.nanoTime() - deadline > 0) {
+                throw new TimeoutException("Script ran past its time limit");
+            }
+        }
+    }
+
+    // ========================== Statements ============================
+
+    abstract static class Node {
+        abstract void run(Context ctx, int[] frame);
+
+        void run(Context ctx) {
+            run(ctx, ctx.globals);
+        }
+    }
+
+    static final class Block extends Node {
+        final Node[] statements;
+
+        Block(Node[] statements) {
+            this.statements = statements;
+        }
+
+        @Override
+        void run(Context ctx, int[] frame) {
+            for (Node statement : statements) statement.run(ctx, frame);
+        }
+    }
+
+    static final class Repeat extends Node {
+        final Expr count;
+        final Block body;
+
+        Repeat(Expr count, Block body) {
+            this.count = count;
+            this.body = body;
+        }
+
+        @Override
+        void run(Context ctx, int[] frame) {
+            int n = count.eval(frame, ctx.globals);
+            for (int i = 0; i < n; i++) {
+                ctx.checkLimits();
+                body.run(ctx, frame);
+            }
+        }
+    }
+
+    static final class Assign extends Node {
+        final boolean global;
+        final int slot;
+        final Expr value;
+
+        Assign(boolean global, int slot, Expr value) {
+            this.global = global;
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        void run(Context ctx, int[] frame) {
+            int v = value.eval(frame, ctx.globals);
+            if (global) ctx.globals[slot] = v;
+            else frame[slot] = v;
+        }
+    }
+
+    // Call of a user-defined procedure; its body is filled in once the definition ends,
+    // which also allows recursion
+    static final class Procedure {
+        final String name;
+        final int params;
+        int slots;
+        Block body;
+
+        Procedure(String name, int params) {
+            this.name = name;
+            this.params = params;
+        }
+    }
+
+    static final class Call extends Node {
+        final Procedure procedure;
+        final Expr[] args;
+
+        Call(Procedure procedure, Expr[] args) {
+            this.procedure = procedure;
+            this.args = args;
+        }
+
+        @Override
+        void run(Context ctx, int[] frame) {
+            if (ctx.depth == MAX_DEPTH) throw new ScriptException("Procedure calls nested too deeply in " + procedure.name);
+            ctx.checkLimits();
+            int[] callee = new int[procedure.slots];
+            for (int i = 0; i < args.length; i++) callee[i] = args[i].eval(frame, ctx.globals);
+
+            ctx.depth++;
+            try {
+                procedure.body.run(ctx, callee);
+            } finally {
+                ctx.depth--;
+            }
+        }
+    }
+
+    // One of the built-in commands, executed through the normal command path
+    static final class Builtin extends Node {
+        final int op;
+        final Expr[] args;
+
+        Builtin(int op, Expr[] args) {
+            this.op = op;
+            this.args = args;
+        }
+
+        @Override
+        void run(Context ctx, int[] frame) {
+            Instruction in = ctx.scratch;
+            in.set(op, args.length);
+            if (args.length == 0) in.args[0] = 90;  // Default angle for a bare left/right
+
+            StringBuilder text = ctx.text;
+            text.setLength(0);
+            text.append(Opcodes.name(op));
+            for (int i = 0; i < args.length; i++) {
+                in.args[i] = args[i].eval(frame, ctx.globals);
+                text.append(' ').append(in.args[i]);
+            }
+            ctx.sink.execute(in, text);
+        }
+    }
+
+    // ========================== Expressions ============================
+
+    abstract static class Expr {
+        abstract int eval(int[] frame, int[] globals);
+    }
+
+    static final class Constant extends Expr {
+        final int value;
+
+        Constant(int value) {
+            this.value = value;
+        }
+
+        @Override
+        int eval(int[] frame, int[] globals) {
+            return value;
+        }
+    }
+
+    static final class Variable extends Expr {
+        final boolean global;
+        final int slot;
+
+        Variable(boolean global, int slot) {
+            this.global = global;
+            this.slot = slot;
+        }
+
+        @Override
+        int eval(int[] frame, int[] globals) {
+            return global ? globals[slot] : frame[slot];
+        }
+    }
+
+    static final class Negate extends Expr {
+        final Expr operand;
+
+        Negate(Expr operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        int eval(int[] frame, int[] globals) {
+            return -operand.eval(frame, globals);
+        }
+    }
+
+    static final class Binary extends Expr {
+        final char operator;
+        final Expr left;
+        final Expr right;
+
+        Binary(char operator, Expr left, Expr right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        int eval(int[] frame, int[] globals) {
+            int a = left.eval(frame, globals);
+            int b = right.eval(frame, globals);
+            switch (operator) {
+                case '+':
+                    return a + b;
+                case '-':
+                    return a - b;
+                case '*':
+                    return a * b;
+                default:
+                    if (b == 0) throw new ScriptException("Division by zero");
+                    return operator == '/' ? a / b : a % b;
+            }
+        }
+    }
+}
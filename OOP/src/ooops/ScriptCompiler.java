@@ -0,0 +1,327 @@
+package ooops;
+
+import java.util.*;
+
+import ooops.Script.*;
+
+// Compiles the scripting language into Script trees. On top of the plain commands it
+// understands
+//
+//     repeat <expr> [ ... ]
+//     to <name> :param ... <statements> end
+//     make <name> <expr>
+//     <procedure> <expr> ...
+//
+// where expressions are integers, :variables, + - * / %, unary minus and parentheses.
+// Procedures and global variables persist between compile calls, so they can be
+// defined on one command line and used on the next.
+public class ScriptCompiler {
+
+    private static final int MAX_GLOBALS = 256;
+
+    private final Map<String, Procedure> procedures = new HashMap<>();
+    private final Map<String, Integer> globalSlots = new HashMap<>();
+    private final int[] globals = new int[MAX_GLOBALS];
+
+    // Parser state for the current compile
+    private List<String> tokens;
+    private List<Integer> lines;
+    private int pos;
+    private Map<String, Integer> locals;  // Variables of the procedure being defined, or null
+    private Procedure defining;
+
+    // True if line uses the scripting language rather than being a plain command.
+    // Checked for every command, so it avoids allocating for plain ones.
+    public boolean isScript(CharSequence line) {
+        int start = 0;
+        while (start < line.length() && Character.isWhitespace(line.charAt(start))) start++;
+        int end = start;
+        while (end < line.length() && !Character.isWhitespace(line.charAt(end)) && line.charAt(end) != '[') end++;
+
+        if (wordEquals(line, start, end, "repeat") || wordEquals(line, start, end, "to")
+                || wordEquals(line, start, end, "make")) {
+            return true;
+        }
+        return !procedures.isEmpty() && procedures.containsKey(line.subSequence(start, end).toString());
+    }
+
+    public Script compile(String source) {
+        tokenize(source);
+        pos = 0;
+        locals = null;
+        defining = null;
+
+        List<Node> statements = new ArrayList<>();
+        while (pos < tokens.size()) {
+            Node statement = statement();
+            if (statement != null) statements.add(statement);
+        }
+        return new Script(new Block(statements.toArray(new Node[0])), globals);
+    }
+
+    // ========================== Statements ============================
+
+    private Node statement() {
+        int line = currentLine();
+        String word = next();
+
+        switch (word) {
+            case "repeat": {
+                Expr count = expression();
+                return new Repeat(count, bracketBlock());
+            }
+            case "to":
+                define(line);
+                return null;
+            case "make": {
+                String name = next();
+                if (name.startsWith(":")) name = name.substring(1);
+                return assign(name, expression());
+            }
+            default:
+                break;
+        }
+
+        Procedure procedure = procedures.get(word);
+        if (procedure != null) {
+            Expr[] args = new Expr[procedure.params];
+            for (int i = 0; i < args.length; i++) args[i] = expression();
+            return new Call(procedure, args);
+        }
+
+        int op = Opcodes.lookup(word, 0, word.length());
+        if (op == Opcodes.INVALID) throw error(line, "Unknown command '" + word + "'");
+        return new Builtin(op, arguments(op));
+    }
+
+    private Expr[] arguments(int op) {
+        int arity;
+        switch (op) {
+            case Opcodes.MOVE:
+            case Opcodes.REVERSE:
+            case Opcodes.SQUARE:
+            case Opcodes.CIRCLE:
+            case Opcodes.EQUILATERAL:
+            case Opcodes.PENWIDTH:
+            case Opcodes.RECORD:
+            case Opcodes.RECORDFRAMES:
+                arity = 1;
+                break;
+            case Opcodes.LEFT:
+            case Opcodes.RIGHT:
+                arity = startsExpression() ? 1 : 0;  // Angle is optional
+                break;
+            case Opcodes.TRIANGLE:
+            case Opcodes.PENCOLOR:
+            case Opcodes.PEN:
+                arity = 3;
+                break;
+            default:
+                arity = 0;
+                break;
+        }
+        Expr[] args = new Expr[arity];
+        for (int i = 0; i < arity; i++) args[i] = expression();
+        return args;
+    }
+
+    private Block bracketBlock() {
+        expect("[");
+        List<Node> body = new ArrayList<>();
+        while (!peek().equals("]")) {
+            if (pos >= tokens.size()) throw error(currentLine(), "Missing ']'");
+            Node statement = statement();
+            if (statement != null) body.add(statement);
+        }
+        expect("]");
+        return new Block(body.toArray(new Node[0]));
+    }
+
+    private void define(int line) {
+        if (defining != null) throw error(line, "Procedures cannot be defined inside " + defining.name);
+        String name = next();
+        if (Opcodes.lookup(name, 0, name.length()) != Opcodes.INVALID || name.equals("repeat")
+                || name.equals("to") || name.equals("make") || name.equals("end")) {
+            throw error(line, "'" + name + "' is a reserved word");
+        }
+
+        locals = new HashMap<>();
+        while (peek().startsWith(":")) {
+            locals.put(next().substring(1), locals.size());
+        }
+
+        Procedure procedure = new Procedure(name, locals.size());
+        Procedure previous = procedures.put(name, procedure);  // Registered first so the body can call itself
+        defining = procedure;
+
+        try {
+            List<Node> body = new ArrayList<>();
+            while (!peek().equals("end")) {
+                if (pos >= tokens.size()) throw error(line, "Missing 'end' for " + name);
+                body.add(statement());
+            }
+            next();
+            procedure.body = new Block(body.toArray(new Node[0]));
+            procedure.slots = locals.size();
+        } catch (ScriptException e) {
+            // A failed redefinition keeps the old procedure, which earlier scripts may call
+            if (previous != null) procedures.put(name, previous);
+            else procedures.remove(name);
+            throw e;
+        } finally {
+            locals = null;
+            defining = null;
+        }
+    }
+
+    private Node assign(String name, Expr value) {
+        if (locals != null) {
+            Integer slot = locals.get(name);
+            if (slot == null && !globalSlots.containsKey(name)) {
+                slot = locals.size();
+                locals.put(name, slot);
+            }
+            if (slot != null) return new Assign(false, slot, value);
+        }
+        return new Assign(true, globalSlot(name), value);
+    }
+
+    private int globalSlot(String name) {
+        Integer slot = globalSlots.get(name);
+        if (slot == null) {
+            if (globalSlots.size() == MAX_GLOBALS) throw error(currentLine(), "Too many variables");
+            slot = globalSlots.size();
+            globalSlots.put(name, slot);
+        }
+        return slot;
+    }
+
+    // ========================== Expressions ============================
+
+    // expression := term (('+' | '-') term)*
+    private Expr expression() {
+        Expr left = term();
+        while (peek().equals("+") || peek().equals("-")) {
+            char operator = next().charAt(0);
+            left = fold(new Binary(operator, left, term()));
+        }
+        return left;
+    }
+
+    // term := factor (('*' | '/' | '%') factor)*
+    private Expr term() {
+        Expr left = factor();
+        while (peek().equals("*") || peek().equals("/") || peek().equals("%")) {
+            char operator = next().charAt(0);
+            left = fold(new Binary(operator, left, factor()));
+        }
+        return left;
+    }
+
+    // factor := number | :variable | '-' factor | '(' expression ')'
+    private Expr factor() {
+        int line = currentLine();
+        String token = next();
+
+        if (token.equals("-")) return fold(new Negate(factor()));
+        if (token.equals("(")) {
+            Expr inner = expression();
+            expect(")");
+            return inner;
+        }
+        if (token.startsWith(":")) {
+            String name = token.substring(1);
+            if (locals != null && locals.containsKey(name)) return new Variable(false, locals.get(name));
+            if (!globalSlots.containsKey(name)) throw error(line, "Unknown variable '" + token + "'");
+            return new Variable(true, globalSlots.get(name));
+        }
+        try {
+            return new Constant(Integer.parseInt(token));
+        } catch (NumberFormatException e) {
+            throw error(line, "Expected a number but found '" + token + "'");
+        }
+    }
+
+    // Evaluates operations on constants at compile time
+    private static Expr fold(Expr expr) {
+        if (expr instanceof Negate && ((Negate) expr).operand instanceof Constant) {
+            return new Constant(expr.eval(null, null));
+        }
+        if (expr instanceof Binary) {
+            Binary b = (Binary) expr;
+            boolean safe = b.operator != '/' && b.operator != '%' || b.right instanceof Constant && ((Constant) b.right).value != 0;
+            if (b.left instanceof Constant && b.right instanceof Constant && safe) {
+                return new Constant(expr.eval(null, null));
+            }
+        }
+        return expr;
+    }
+
+    private boolean startsExpression() {
+        String token = peek();
+        return token.equals("(") || token.equals("-") || token.startsWith(":")
+                || !token.isEmpty() && Character.isDigit(token.charAt(0));
+    }
+
+    // ========================== Tokens ============================
+
+    private void tokenize(String source) {
+        tokens = new ArrayList<>();
+        lines = new ArrayList<>();
+        int line = 1;
+        int i = 0;
+        while (i < source.length()) {
+            char c = source.charAt(i);
+            if (c == '\n') {
+                line++;
+                i++;
+            } else if (Character.isWhitespace(c)) {
+                i++;
+            } else if ("[]()+-*/%".indexOf(c) >= 0) {
+                tokens.add(String.valueOf(c));
+                lines.add(line);
+                i++;
+            } else {
+                int start = i;
+                while (i < source.length() && !Character.isWhitespace(source.charAt(i))
+                        && "[]()+-*/%".indexOf(source.charAt(i)) < 0) {
+                    i++;
+                }
+                tokens.add(source.substring(start, i));
+                lines.add(line);
+            }
+        }
+    }
+
+    private String peek() {
+        return pos < tokens.size() ? tokens.get(pos) : "";
+    }
+
+    private String next() {
+        if (pos >= tokens.size()) throw error(currentLine(), "Unexpected end of script");
+        return tokens.get(pos++);
+    }
+
+    private void expect(String token) {
+        int line = currentLine();
+        String found = next();
+        if (!found.equals(token)) throw error(line, "Expected '" + token + "' but found '" + found + "'");
+    }
+
+    private int currentLine() {
+        if (lines.isEmpty()) return 1;
+        return lines.get(Math.min(pos, lines.size() - 1));
+    }
+
+    private static ScriptException error(int line, String message) {
+        return new ScriptException("Line " + line + ": " + message);
+    }
+
+    private static boolean wordEquals(CharSequence line, int start, int end, String word) {
+        if (end - start != word.length()) return false;
+        for (int i = 0; i < word.length(); i++) {
+            if (line.charAt(start + i) != word.charAt(i)) return false;
+        }
+        return true;
+    }
+}
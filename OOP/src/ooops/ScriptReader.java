@@ -0,0 +1,166 @@
+package ooops;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.function.BooleanSupplier;
+
+// Streams the lines of a (possibly very large) command file through memory-mapped
+// windows. Each line is decoded into one reused char buffer, so no String is created
+// per line and memory use does not depend on the file size.
+public class ScriptReader {
+
+    // Receives each line; the CharSequence is only valid until the call returns
+    public interface LineHandler {
+        void line(CharSequence line, long lineNumber);
+    }
+
+    public interface ProgressListener {
+        void progress(long bytesRead, long totalBytes);
+    }
+
+    private static final int DEFAULT_WINDOW = 32 * 1024 * 1024;
+
+    private final File file;
+    private final int windowSize;
+    private final long regionStart;   // Byte range to read; regionEnd < 0 means to the end of the file
+    private final long regionEnd;
+    private final LineBuffer line = new LineBuffer();
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    public ScriptReader(File file) {
+        this(file, DEFAULT_WINDOW);
+    }
+
+    public ScriptReader(File file, int windowSize) {
+        this(file, 0, -1, windowSize);
+    }
+
+    // Reads only bytes [start, end) of the file, e.g. one chunk of a parallel pass.
+    // start should be 0 or just after a '\n'.
+    public ScriptReader(File file, long start, long end, int windowSize) {
+        this.file = file;
+        this.windowSize = windowSize;
+        this.regionStart = start;
+        this.regionEnd = end;
+    }
+
+    // Reads the file line by line until the end or until cancelled returns true.
+    // Returns the number of lines handed to the handler.
+    public long read(LineHandler handler, ProgressListener listener, BooleanSupplier cancelled) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long end = regionEnd < 0 ? channel.size() : Math.min(regionEnd, channel.size());
+            long total = Math.max(0, end - regionStart);
+            long position = 0;
+            long lines = 0;
+            long nextReport = 0;
+            long reportStep = Math.max(total / 100, 1);
+            int window = windowSize;
+
+            while (position < total) {
+                long size = Math.min(window, total - position);
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, regionStart + position, size);
+                boolean lastWindow = position + size == total;
+
+                int lineStart = 0;
+                int limit = (int) size;
+                for (int i = 0; i < limit; i++) {
+                    if (map.get(i) != '\n') continue;
+
+                    decode(map, lineStart, i);
+                    handler.line(line, ++lines);
+                    lineStart = i + 1;
+
+                    if (cancelled != null && cancelled.getAsBoolean()) return lines;
+                    long read = position + lineStart;
+                    if (listener != null && read >= nextReport) {
+                        listener.progress(read, total);
+                        nextReport = read + reportStep;
+                    }
+                }
+
+                if (lastWindow) {
+                    // Final line without a trailing newline
+                    if (lineStart < limit) {
+                        decode(map, lineStart, limit);
+                        handler.line(line, ++lines);
+                    }
+                    position = total;
+                } else if (lineStart == 0) {
+                    window *= 2;  // A single line longer than the window: retry with a bigger one
+                } else {
+                    position += lineStart;  // Next window starts at the unfinished line
+                    window = windowSize;
+                }
+            }
+
+            if (listener != null) listener.progress(total, total);
+            return lines;
+        }
+    }
+
+    // Decodes bytes [start, end) of the window into the line buffer, dropping a trailing '\r'
+    private void decode(ByteBuffer map, int start, int end) {
+        if (end > start && map.get(end - 1) == '\r') end--;
+
+        line.ensureCapacity(end - start);
+        int n = 0;
+        for (int i = start; i < end; i++) {
+            byte b = map.get(i);
+            if (b < 0) {
+                decodeUtf8(map, start, end);  // Non-ASCII line: use the full decoder
+                return;
+            }
+            line.chars[n++] = (char) b;
+        }
+        line.length = n;
+    }
+
+    private void decodeUtf8(ByteBuffer map, int start, int end) {
+        ByteBuffer slice = map.duplicate();
+        slice.limit(end).position(start);
+        CharBuffer out = CharBuffer.wrap(line.chars);
+        decoder.reset();
+        decoder.decode(slice, out, true);
+        decoder.flush(out);
+        line.length = out.position();
+    }
+
+    // Reusable, mutable view of the current line
+    private static final class LineBuffer implements CharSequence {
+        char[] chars = new char[256];
+        int length;
+
+        void ensureCapacity(int n) {
+            if (chars.length < n) chars = new char[Math.max(n, chars.length * 2)];
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return chars[index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(chars, start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, 0, length);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package ooops;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+// Checks a whole command file before any of it runs. The file is split into chunks at
+// line boundaries that are compiled and range-checked in parallel with the same rules
+// execute uses (CommandCompiler.compile and checkArgs). The moves are then replayed on
+// a simulated turtle, in order, to find moves that would leave the canvas.
+//
+// The simulation (TurtleModel) assumes the turtle arithmetic of LBUGraphics. After a
+// nested load, undo, redo or a repeat/to/make line the position is unknown and bounds
+// are no longer checked. With setSimulateMoves(false) they are not checked at all.
+public class ScriptValidator {
+
+    private static final long CHUNK_BYTES = 4L * 1024 * 1024;
+
+    // One bad line
+    public static final class Problem {
+        public final long line;
+        public final String message;
+
+        Problem(long line, String message) {
+            this.line = line;
+            this.message = message;
+        }
+
+        @Override
+        public String toString() {
+            return "Line " + line + ": " + message;
+        }
+    }
+
+    public static final class Result {
+        private final long lines;
+        private final List<Problem> problems;
+        private final boolean tracked;     // No line that makes the position unknown
+        private final boolean simulated;   // Bounds checked to the end of the file
+
+        Result(long lines, List<Problem> problems, boolean tracked, boolean simulated) {
+            this.lines = lines;
+            this.problems = problems;
+            this.tracked = tracked;
+            this.simulated = simulated;
+        }
+
+        public long getLines() {
+            return lines;
+        }
+
+        // Ordered by line number
+        public List<Problem> getProblems() {
+            return problems;
+        }
+
+        public boolean isClean() {
+            return problems.isEmpty();
+        }
+
+        // No nested load, undo, redo or script line, whether or not moves were simulated
+        public boolean isSelfContained() {
+            return tracked;
+        }
+
+        public boolean isFullySimulated() {
+            return simulated;
+        }
+
+        // The first max problems, one per line, and a count of the rest
+        public String report(int max) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < problems.size() && i < max; i++) sb.append(problems.get(i)).append('\n');
+            if (problems.size() > max) sb.append("... and ").append(problems.size() - max).append(" more\n");
+            return sb.toString();
+        }
+
+        public String summary() {
+            return lines + " lines checked, " + problems.size() + " problem" + (problems.size() == 1 ? "" : "s")
+                    + (simulated ? "" : tracked ? " (moves not checked against the canvas)"
+                            : " (turtle position not tracked to the end)");
+        }
+    }
+
+    // Compiled lines of one chunk that change the turtle: op, three args and the line per entry
+    private static final class Chunk {
+        long lines;
+        final List<Problem> problems = new ArrayList<>();
+        int[] moves = new int[5 * 64];
+        int moveCount;
+
+        void addMove(Instruction in, long line) {
+            addMove(in.op, in.args[0], in.args[1], in.args[2], line);
+        }
+
+        void addMove(int op, int a, int b, int c, long line) {
+            if ((moveCount + 1) * 5 > moves.length) moves = Arrays.copyOf(moves, moves.length * 2);
+            int o = moveCount++ * 5;
+            moves[o] = op;
+            moves[o + 1] = a;
+            moves[o + 2] = b;
+            moves[o + 3] = c;
+            moves[o + 4] = (int) Math.min(line, Integer.MAX_VALUE);  // Line within the chunk
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private boolean simulateMoves = true;
+
+    // width and height are the canvas bounds that moves are checked against
+    public ScriptValidator(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    // Off when TurtleModel does not match the LBUGraphics in use
+    // (GraphicsSystem.turtleModelMatches); moves are then compiled and range-checked only
+    public void setSimulateMoves(boolean simulateMoves) {
+        this.simulateMoves = simulateMoves;
+    }
+
+    // Validates file for a turtle that starts at start
+    public Result validate(File file, TurtleState start) throws IOException {
+        long[] bounds = chunkBounds(file);
+        int chunks = bounds.length - 1;
+
+        List<ForkJoinTask<Chunk>> tasks = new ArrayList<>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            long from = bounds[i], to = bounds[i + 1];
+            tasks.add(ForkJoinPool.commonPool().submit(() -> checkChunk(file, from, to)));
+        }
+
+        List<Problem> problems = new ArrayList<>();
+        long lineOffset = 0;
+        Simulation turtle = new Simulation(start);
+        for (ForkJoinTask<Chunk> task : tasks) {
+            Chunk chunk;
+            try {
+                chunk = task.join();  // Chunks are joined in file order, which the simulation needs
+            } catch (RuntimeException e) {
+                if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                throw e;
+            }
+            for (Problem p : chunk.problems) problems.add(new Problem(lineOffset + p.line, p.message));
+            turtle.run(chunk, lineOffset, problems);
+            lineOffset += chunk.lines;
+        }
+
+        problems.sort(Comparator.comparingLong(p -> p.line));
+        return new Result(lineOffset, problems, !turtle.lost, simulateMoves && !turtle.lost);
+    }
+
+    // Chunk start offsets plus the file size; every chunk starts at the beginning of a line
+    private static long[] chunkBounds(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            List<Long> bounds = new ArrayList<>();
+            bounds.add(0L);
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            long next = CHUNK_BYTES;
+            while (next < size) {
+                // Move the nominal boundary to just after the next newline
+                long position = next;
+                long found = -1;
+                while (found < 0 && position < size) {
+                    buffer.clear();
+                    int n = channel.read(buffer, position);
+                    if (n <= 0) break;
+                    for (int i = 0; i < n; i++) {
+                        if (buffer.get(i) == '\n') {
+                            found = position + i + 1;
+                            break;
+                        }
+                    }
+                    position += n;
+                }
+                if (found < 0 || found >= size) break;
+                bounds.add(found);
+                next = found + CHUNK_BYTES;
+            }
+            bounds.add(size);
+            return bounds.stream().mapToLong(Long::longValue).toArray();
+        }
+    }
+
+    private Chunk checkChunk(File file, long from, long to) throws IOException {
+        Chunk chunk = new Chunk();
+        Instruction in = new Instruction();
+        ScriptCompiler scripts = new ScriptCompiler();  // Learns the chunk's procedures, so calls count as scripts
+        chunk.lines = new ScriptReader(file, from, to, (int) Math.min(CHUNK_BYTES, Integer.MAX_VALUE))
+                .read((line, number) -> {
+                    if (scripts.isScript(line)) {
+                        try {
+                            scripts.compile(line.toString());
+                        } catch (Script.ScriptException e) {
+                            chunk.problems.add(new Problem(number, "Script error: " + e.getMessage()));
+                            return;
+                        }
+                        chunk.addMove(Opcodes.INVALID, 0, 0, 0, number);  // Runs as a script; not simulated
+                        return;
+                    }
+                    if (!CommandCompiler.compile(line, in)) {
+                        chunk.problems.add(new Problem(number, in.error));
+                        return;
+                    }
+                    String argError = CommandCompiler.checkArgs(in);
+                    if (argError != null) {
+                        chunk.problems.add(new Problem(number, argError));
+                        return;
+                    }
+                    if (affectsTurtle(in.op)) chunk.addMove(in, number);
+                }, null, null);
+        return chunk;
+    }
+
+    private static boolean affectsTurtle(int op) {
+        switch (op) {
+            case Opcodes.MOVE:
+            case Opcodes.REVERSE:
+            case Opcodes.LEFT:
+            case Opcodes.RIGHT:
+            case Opcodes.SQUARE:
+            case Opcodes.EQUILATERAL:
+            case Opcodes.TRIANGLE:
+            case Opcodes.RESET:
+            case Opcodes.LOAD:
+            case Opcodes.UNDO:
+            case Opcodes.REDO:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // ========================== Turtle Simulation ============================
+
+    // Replays the moves of each chunk on a TurtleModel, in file order
+    private final class Simulation {
+        final TurtleModel turtle;
+        boolean lost;
+
+        Simulation(TurtleState start) {
+            turtle = new TurtleModel(width, height, start.x, start.y, start.direction);
+        }
+
+        void run(Chunk chunk, long lineOffset, List<Problem> problems) {
+            for (int m = 0; m < chunk.moveCount && !lost; m++) {
+                int o = m * 5;
+                int op = chunk.moves[o];
+                int a = chunk.moves[o + 1], b = chunk.moves[o + 2], c = chunk.moves[o + 3];
+                long line = lineOffset + chunk.moves[o + 4];
+
+                switch (op) {
+                    case Opcodes.MOVE:
+                    case Opcodes.REVERSE:
+                        if (simulateMoves && !turtle.move(a, op == Opcodes.REVERSE ? -1 : 1)) {
+                            problems.add(new Problem(line, "Move would go out of bounds!"));
+                        }
+                        break;
+                    case Opcodes.LEFT:
+                        turtle.turn(-a);
+                        break;
+                    case Opcodes.RIGHT:
+                        turtle.turn(a);
+                        break;
+                    case Opcodes.SQUARE:
+                    case Opcodes.EQUILATERAL:
+                    case Opcodes.TRIANGLE:
+                        turtle.shape(op, a, b, c);
+                        break;
+                    case Opcodes.RESET:
+                        turtle.reset();
+                        break;
+                    default:
+                        lost = true;  // Nested load, undo, redo or a script line: position unknown from here on
+                        break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package ooops;
+
+import java.awt.Rectangle;
+import java.awt.geom.Line2D;
+import java.awt.geom.Point2D;
+import java.util.Arrays;
+
+// Uniform grid over the primitives of a DisplayList. Each cell lists the primitives
+// that touch it, so redrawing a dirty rectangle or finding what is under a pixel only
+// looks at nearby primitives instead of all of them.
+public class SegmentGrid {
+
+    private final int cellSize;
+    private final int columns;
+    private final int rows;
+    private final int[][] cells;
+    private final int[] counts;
+
+    private int indexed;               // Primitives of the list indexed so far
+    private int resets = -1;           // DisplayList.resets() when the index was last rebuilt
+    private int[] stamps = new int[1024];
+    private int stamp;                 // Query id used to skip duplicates across cells
+    private int[] results = new int[256];
+
+    public SegmentGrid(int width, int height, int cellSize) {
+        this.cellSize = cellSize;
+        this.columns = Math.max(1, (width + cellSize - 1) / cellSize);
+        this.rows = Math.max(1, (height + cellSize - 1) / cellSize);
+        this.cells = new int[columns * rows][];
+        this.counts = new int[columns * rows];
+    }
+
+    // ========================== Indexing ============================
+
+    // Brings the index up to date with the list: appends new primitives, or rebuilds
+    // if the list was cleared or truncated since. A size check alone is not enough: a
+    // clear followed by as many new primitives would leave stale cells behind.
+    public void sync(DisplayList list) {
+        if (list.resets() != resets) {
+            Arrays.fill(counts, 0);
+            indexed = 0;
+            resets = list.resets();
+        }
+        while (indexed < list.size()) {
+            insert(list, indexed++);
+        }
+    }
+
+    private void insert(DisplayList list, int i) {
+        Rectangle b = list.bounds(i);
+        int c0 = clampColumn(b.x), c1 = clampColumn(b.x + b.width);
+        int r0 = clampRow(b.y), r1 = clampRow(b.y + b.height);
+
+        boolean line = list.kind(i) == DisplayList.LINE;
+        float pad = list.width(i) / 2 + 1;
+        Rectangle cell = new Rectangle();
+
+        for (int r = r0; r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) {
+                if (line) {
+                    // Long diagonal lines only go into the cells they actually cross
+                    cell.setBounds((int) (c * cellSize - pad), (int) (r * cellSize - pad),
+                            (int) (cellSize + 2 * pad), (int) (cellSize + 2 * pad));
+                    if (!cell.intersectsLine(list.coord(i, 0), list.coord(i, 1), list.coord(i, 2), list.coord(i, 3))
+                            && (c > 0 && c < columns - 1 && r > 0 && r < rows - 1)) {
+                        continue;
+                    }
+                }
+                add(r * columns + c, i);
+            }
+        }
+    }
+
+    private void add(int cell, int item) {
+        int[] items = cells[cell];
+        if (items == null) {
+            items = cells[cell] = new int[8];
+        } else if (counts[cell] == items.length) {
+            items = cells[cell] = Arrays.copyOf(items, items.length * 2);
+        }
+        items[counts[cell]++] = item;
+    }
+
+    private int clampColumn(int x) {
+        return Math.max(0, Math.min(columns - 1, Math.floorDiv(x, cellSize)));
+    }
+
+    private int clampRow(int y) {
+        return Math.max(0, Math.min(rows - 1, Math.floorDiv(y, cellSize)));
+    }
+
+    // ========================== Queries ============================
+
+    // Indices of primitives whose bounds intersect region, in drawing order.
+    // Returns the count; the indices are in getResults()[0, count) until the next query.
+    public int query(DisplayList list, Rectangle region) {
+        sync(list);
+        nextStamp(list.size());
+
+        int c0 = clampColumn(region.x), c1 = clampColumn(region.x + region.width);
+        int r0 = clampRow(region.y), r1 = clampRow(region.y + region.height);
+        int n = 0;
+
+        for (int r = r0; r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) {
+                int cell = r * columns + c;
+                int[] items = cells[cell];
+                for (int k = 0; k < counts[cell]; k++) {
+                    int i = items[k];
+                    if (stamps[i] == stamp || !list.intersects(i, region)) continue;
+                    stamps[i] = stamp;
+                    if (n == results.length) results = Arrays.copyOf(results, n * 2);
+                    results[n++] = i;
+                }
+            }
+        }
+        Arrays.sort(results, 0, n);  // Painter's order
+        return n;
+    }
+
+    // Thread-safe variant of query for concurrent readers (the index must already be
+    // synced): returns the sorted, de-duplicated indices in a new array
+    public int[] collect(DisplayList list, Rectangle region) {
+        int c0 = clampColumn(region.x), c1 = clampColumn(region.x + region.width);
+        int r0 = clampRow(region.y), r1 = clampRow(region.y + region.height);
+
+        int total = 0;
+        for (int r = r0; r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) total += counts[r * columns + c];
+        }
+
+        int[] ids = new int[total];
+        int n = 0;
+        for (int r = r0; r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) {
+                int cell = r * columns + c;
+                int[] items = cells[cell];
+                for (int k = 0; k < counts[cell]; k++) {
+                    if (list.intersects(items[k], region)) ids[n++] = items[k];
+                }
+            }
+        }
+
+        Arrays.sort(ids, 0, n);
+        int unique = 0;
+        for (int k = 0; k < n; k++) {
+            if (unique == 0 || ids[unique - 1] != ids[k]) ids[unique++] = ids[k];
+        }
+        return Arrays.copyOf(ids, unique);
+    }
+
+    public int[] getResults() {
+        return results;
+    }
+
+    // Topmost primitive drawn within tolerance pixels of (x, y), or -1
+    public int hitTest(DisplayList list, int x, int y, float tolerance) {
+        int t = (int) Math.ceil(tolerance);
+        int n = query(list, new Rectangle(x - t, y - t, 2 * t, 2 * t));
+
+        for (int k = n - 1; k >= 0; k--) {
+            int i = results[k];
+            float slack = list.width(i) / 2 + tolerance;
+            switch (list.kind(i)) {
+                case DisplayList.LINE:
+                    if (Line2D.ptSegDist(list.coord(i, 0), list.coord(i, 1), list.coord(i, 2), list.coord(i, 3), x, y) <= slack) {
+                        return i;
+                    }
+                    break;
+                case DisplayList.CIRCLE:
+                    double d = Point2D.distance(list.coord(i, 0), list.coord(i, 1), x, y);
+                    if (Math.abs(d - list.coord(i, 2)) <= slack) return i;
+                    break;
+                default:
+                    return i;  // Fills cover their whole rectangle, which the query already matched
+            }
+        }
+        return -1;
+    }
+
+    private void nextStamp(int size) {
+        if (stamps.length < size) stamps = Arrays.copyOf(stamps, Math.max(size, stamps.length * 2));
+        if (++stamp == 0) {
+            Arrays.fill(stamps, 0);  // Wrapped around; start over
+            stamp = 1;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package ooops;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+// Minimal PNG encoder that takes the image one scanline at a time, so an image of any
+// size can be written without holding it in memory. Writes 8-bit RGB, non-interlaced,
+// with the Sub filter on every row.
+public class StreamingPngWriter implements Closeable {
+
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+    private static final int IDAT_SIZE = 64 * 1024;
+
+    private final DataOutputStream out;
+    private final int width;
+    private final int height;
+    private final byte[] row;
+    private final DeflaterOutputStream deflater;
+    private final Deflater compressor;
+    private int rowsWritten;
+
+    public StreamingPngWriter(OutputStream target, int width, int height, int compressionLevel) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(target, IDAT_SIZE));
+        this.width = width;
+        this.height = height;
+        this.row = new byte[1 + width * 3];
+
+        out.write(SIGNATURE);
+        ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        DataOutputStream h = new DataOutputStream(header);
+        h.writeInt(width);
+        h.writeInt(height);
+        h.writeByte(8);   // Bit depth
+        h.writeByte(2);   // Colour type: truecolour
+        h.writeByte(0);   // Compression: deflate
+        h.writeByte(0);   // Filter method
+        h.writeByte(0);   // No interlace
+        writeChunk("IHDR", header.toByteArray(), header.size());
+
+        compressor = new Deflater(compressionLevel);
+        deflater = new DeflaterOutputStream(new IdatStream(), compressor, IDAT_SIZE);
+    }
+
+    // Appends one scanline of packed RGB pixels taken from pixels[offset, offset + width)
+    public void writeRow(int[] pixels, int offset) throws IOException {
+        if (rowsWritten == height) throw new IllegalStateException("All " + height + " rows already written");
+
+        row[0] = 1;  // Sub filter: each byte minus the same channel of the pixel to its left
+        int prev = 0;
+        for (int x = 0, p = 1; x < width; x++, p += 3) {
+            int rgb = pixels[offset + x];
+            row[p] = (byte) ((rgb >> 16) - (prev >> 16));
+            row[p + 1] = (byte) ((rgb >> 8) - (prev >> 8));
+            row[p + 2] = (byte) (rgb - prev);
+            prev = rgb;
+        }
+        deflater.write(row);
+        rowsWritten++;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (rowsWritten != height) {
+            out.close();
+            throw new IOException("PNG incomplete: " + rowsWritten + " of " + height + " rows written");
+        }
+        deflater.finish();
+        compressor.end();
+        writeChunk("IEND", new byte[0], 0);
+        out.close();
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    // Receives compressed bytes and emits them as IDAT chunks
+    private class IdatStream extends OutputStream {
+        private final byte[] one = new byte[1];
+
+        @Override
+        public void write(int b) throws IOException {
+            one[0] = (byte) b;
+            write(one, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return;
+            if (off == 0) {
+                writeChunk("IDAT", b, len);
+            } else {
+                byte[] copy = new byte[len];
+                System.arraycopy(b, off, copy, 0, len);
+                writeChunk("IDAT", copy, len);
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package ooops;
+
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import javax.imageio.ImageIO;
+
+// Streams the display list out as SVG. Connected lines of the same colour and width
+// become one path, collinear runs collapse to their end points and zero-length
+// segments are dropped. Only the path being built is kept in memory.
+public class SvgExporter {
+
+    private final DisplayList list;
+    private final int width;
+    private final int height;
+
+    private Writer out;
+
+    // State of the open path
+    private boolean pathOpen;
+    private int pathColour;
+    private float pathWidth;
+    private float lastX, lastY;          // End of the last segment written or pending
+    private float dirX, dirY;            // Direction of the pending segment
+    private boolean pending;             // Last point not written yet (may still be extended)
+
+    private long written;                // Segments in the drawing
+    private long dropped;                // Segments removed by merging or as zero-length
+
+    public SvgExporter(DisplayList list, int width, int height) {
+        this.list = list;
+        this.width = width;
+        this.height = height;
+    }
+
+    public void export(File file) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 64 * 1024)) {
+            export(writer);
+        }
+    }
+
+    public void export(Writer writer) throws IOException {
+        out = writer;
+        written = 0;
+        dropped = 0;
+
+        out.write("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"" + width + "\" height=\"" + height
+                + "\" viewBox=\"0 0 " + width + " " + height + "\">\n");
+        out.write("<g fill=\"none\" stroke-linecap=\"square\" stroke-linejoin=\"miter\">\n");
+
+        BufferedImage background = list.getBackground();
+        if (background != null) writeImage(background);
+
+        for (int i = 0; i < list.size(); i++) {
+            switch (list.kind(i)) {
+                case DisplayList.LINE:
+                    line(i);
+                    break;
+                case DisplayList.CIRCLE:
+                    closePath();
+                    out.write("<circle cx=\"" + num(list.coord(i, 0)) + "\" cy=\"" + num(list.coord(i, 1))
+                            + "\" r=\"" + num(list.coord(i, 2)) + "\"" + stroke(list.colour(i), list.width(i)) + "/>\n");
+                    break;
+                default:
+                    closePath();
+                    out.write("<rect x=\"" + num(list.coord(i, 0)) + "\" y=\"" + num(list.coord(i, 1))
+                            + "\" width=\"" + num(list.coord(i, 2)) + "\" height=\"" + num(list.coord(i, 3))
+                            + "\" fill=\"" + colour(list.colour(i)) + "\"" + opacity("fill", list.colour(i)) + "/>\n");
+                    break;
+            }
+        }
+        closePath();
+
+        out.write("</g>\n</svg>\n");
+        out.flush();
+    }
+
+    public long getSegmentCount() {
+        return written;
+    }
+
+    public long getDroppedCount() {
+        return dropped;
+    }
+
+    // ========================== Path Building ============================
+
+    private void line(int i) throws IOException {
+        float x1 = list.coord(i, 0), y1 = list.coord(i, 1);
+        float x2 = list.coord(i, 2), y2 = list.coord(i, 3);
+        written++;
+
+        if (x1 == x2 && y1 == y2) {
+            dropped++;  // Zero-length moves draw nothing worth keeping
+            return;
+        }
+
+        float dx = x2 - x1, dy = y2 - y1;
+        boolean continues = pathOpen && list.colour(i) == pathColour && list.width(i) == pathWidth
+                && x1 == lastX && y1 == lastY;
+
+        if (continues && pending && dx * dirY == dy * dirX && dx * dirX + dy * dirY > 0) {
+            // Same direction as the pending segment: just move its end point
+            dropped++;
+        } else {
+            if (!continues) {
+                closePath();
+                out.write("<path" + stroke(list.colour(i), list.width(i)) + " d=\"M" + num(x1) + " " + num(y1));
+                pathOpen = true;
+                pathColour = list.colour(i);
+                pathWidth = list.width(i);
+            } else if (pending) {
+                out.write(" L" + num(lastX) + " " + num(lastY));
+            }
+            dirX = dx;
+            dirY = dy;
+        }
+        lastX = x2;
+        lastY = y2;
+        pending = true;
+    }
+
+    private void closePath() throws IOException {
+        if (!pathOpen) return;
+        if (pending) out.write(" L" + num(lastX) + " " + num(lastY));
+        out.write("\"/>\n");
+        pathOpen = false;
+        pending = false;
+    }
+
+    // Embeds a loaded background image as a base64 PNG, encoded straight into the writer
+    private void writeImage(BufferedImage image) throws IOException {
+        out.write("<image x=\"0\" y=\"0\" width=\"" + image.getWidth() + "\" height=\"" + image.getHeight()
+                + "\" href=\"data:image/png;base64,");
+        out.flush();
+        OutputStream base64 = Base64.getEncoder().wrap(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                for (int k = off; k < off + len; k++) out.write(b[k]);
+            }
+        });
+        ImageIO.write(image, "png", base64);
+        base64.close();  // Pads the last group; our writer stays open
+        out.write("\"/>\n");
+    }
+
+    // ========================== Formatting ============================
+
+    private static String stroke(int argb, float width) {
+        return " stroke=\"" + colour(argb) + "\" stroke-width=\"" + num(width) + "\"" + opacity("stroke", argb);
+    }
+
+    private static String colour(int argb) {
+        return String.format("#%06x", argb & 0xFFFFFF);
+    }
+
+    private static String opacity(String attribute, int argb) {
+        int alpha = argb >>> 24;
+        return alpha == 255 ? "" : " " + attribute + "-opacity=\"" + num(alpha / 255f) + "\"";
+    }
+
+    private static String num(float value) {
+        if (value == (int) value) return Integer.toString((int) value);
+        return Float.toString(Math.round(value * 100) / 100f);
+    }
+}
@@ -0,0 +1,88 @@
+package ooops;
+
+// The integer turtle arithmetic of LBUGraphics and the bounds check in execute, for code
+// that needs to know where commands leave the turtle without drawing anything
+// (ScriptValidator, CommandOptimizer).
+//
+// Assumes what LBUGraphics does: x grows with sin(heading), y with cos(heading), left
+// subtracts from the heading, and reset returns to the centre of the canvas facing
+// down (180). GraphicsSystem.turtleModelMatches checks this against the library in use
+// before the optimizer relies on it.
+final class TurtleModel {
+
+    static final int HOME_DIRECTION = 180;
+
+    private final int width;
+    private final int height;
+    int x;
+    int y;
+    int direction;
+
+    TurtleModel(int width, int height, int x, int y, int direction) {
+        this.width = width;
+        this.height = height;
+        this.x = x;
+        this.y = y;
+        this.direction = direction;
+    }
+
+    // Moves the way execute does: if the move would leave the canvas the turtle stays put
+    // and false is returned. sign is -1 for reverse.
+    boolean move(int distance, int sign) {
+        double radians = Math.toRadians(direction);
+        int futureX = x + (int) (distance * Math.sin(radians)) * sign;
+        int futureY = y + (int) (distance * Math.cos(radians)) * sign;
+        if (futureX < 0 || futureX > width || futureY < 0 || futureY > height) return false;
+        forward(distance * sign);
+        return true;
+    }
+
+    void forward(int distance) {
+        double radians = Math.toRadians(direction);
+        x += (int) (distance * Math.sin(radians));
+        y += (int) (distance * Math.cos(radians));
+    }
+
+    void turn(int degrees) {
+        direction = Math.floorMod(direction + degrees, 360);
+    }
+
+    void reset() {
+        x = width / 2;
+        y = height / 2;
+        direction = HOME_DIRECTION;
+    }
+
+    // SQUARE, EQUILATERAL or TRIANGLE with arguments a, b, c, moved as GraphicsSystem draws them
+    void shape(int op, int a, int b, int c) {
+        switch (op) {
+            case Opcodes.SQUARE:
+                for (int i = 0; i < 4; i++) {
+                    forward(a);
+                    turn(-90);
+                }
+                break;
+            case Opcodes.EQUILATERAL:
+                for (int i = 0; i < 3; i++) {
+                    forward(a);
+                    turn(-120);
+                }
+                break;
+            case Opcodes.TRIANGLE: {
+                // Same angles as GraphicsSystem.Triangle
+                double angleA = Math.toDegrees(Math.acos((b * b + c * c - a * a) / (2.0 * b * c)));
+                double angleB = Math.toDegrees(Math.acos((a * a + c * c - b * b) / (2.0 * a * c)));
+                double angleC = Math.toDegrees(Math.acos((a * a + b * b - c * c) / (2.0 * a * b)));
+                forward(a);
+                turn(-(int) (180 - angleC));
+                forward(b);
+                turn(-(int) (180 - angleA));
+                forward(c);
+                turn(-(int) (180 - angleB));
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Not a shape: " + Opcodes.name(op));
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package ooops;
+
+// Snapshot of the turtle: position, heading, pen state, colour and stroke width.
+public final class TurtleState {
+
+    public final int x;
+    public final int y;
+    public final int direction;
+    public final boolean penDown;
+    public final int colour;       // ARGB
+    public final int stroke;
+
+    public TurtleState(int x, int y, int direction, boolean penDown, int colour, int stroke) {
+        this.x = x;
+        this.y = y;
+        this.direction = direction;
+        this.penDown = penDown;
+        this.colour = colour;
+        this.stroke = stroke;
+    }
+
+    @Override
+    public String toString() {
+        return "(" + x + ", " + y + ") facing " + direction + ", pen " + (penDown ? "down" : "up")
+                + ", colour #" + String.format("%06x", colour & 0xFFFFFF) + ", width " + stroke;
+    }
+}
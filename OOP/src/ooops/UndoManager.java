@@ -0,0 +1,196 @@
+package ooops;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+// Undo/redo over the drawing commands of a session. Every few commands a checkpoint of
+// the canvas and turtle is kept; undoing restores the nearest earlier checkpoint and
+// replays only the commands after it. The checkpoints after the base and the commands
+// kept for replay share one memory budget; when it is exceeded the oldest checkpoint
+// becomes the new base and the commands before it are forgotten, so how far back undo
+// reaches is bounded.
+public class UndoManager {
+
+    // The canvas the commands run on
+    public interface Host {
+        Checkpoint capture();
+
+        void restore(Checkpoint checkpoint);
+
+        // Re-executes a command without recording it in history or undo
+        void replay(String command);
+    }
+
+    // Canvas and turtle state after a given number of commands
+    public static final class Checkpoint {
+        final TurtleState turtle;
+        final BufferedImage canvas;
+        final int displayListSize;
+        final int displayListGeneration;
+        int position;
+
+        public Checkpoint(TurtleState turtle, BufferedImage canvas, int displayListSize, int displayListGeneration) {
+            this.turtle = turtle;
+            this.canvas = canvas;
+            this.displayListSize = displayListSize;
+            this.displayListGeneration = displayListGeneration;
+        }
+
+        public TurtleState getTurtle() {
+            return turtle;
+        }
+
+        public BufferedImage getCanvas() {
+            return canvas;
+        }
+
+        public int getDisplayListSize() {
+            return displayListSize;
+        }
+
+        public int getDisplayListGeneration() {
+            return displayListGeneration;
+        }
+
+        long bytes() {
+            return (long) canvas.getWidth() * canvas.getHeight() * 4;
+        }
+    }
+
+    private final Host host;
+    private final int spacing;             // Commands between checkpoints
+    private final long memoryBudget;       // Bytes of checkpoint images (base excluded) and commands
+
+    private final List<String> commands = new ArrayList<>();        // Commands since the base
+    private final List<Checkpoint> checkpoints = new ArrayList<>(); // Ordered by position, [0] is the base
+    private int cursor;                    // Commands currently applied; the rest can be redone
+    private long usedBytes;
+    private boolean checkpointing = true;  // Off: only the base is kept and undo replays from it
+
+    public UndoManager(Host host, int spacing, long memoryBudget) {
+        this.host = host;
+        this.spacing = Math.max(1, spacing);
+        this.memoryBudget = memoryBudget;
+    }
+
+    // Turns the periodic checkpoints on or off. Off suits canvases that are rarely undone
+    // (batch and render farm jobs): no canvas copies every few commands, and an undo
+    // still works, replaying everything since the base. Checkpoints already taken stay.
+    public void setCheckpointing(boolean enabled) {
+        checkpointing = enabled;
+    }
+
+    // Forgets all undo/redo state and takes the current canvas as the new starting point,
+    // e.g. after an image was loaded that cannot be replayed
+    public void rebase() {
+        commands.clear();
+        checkpoints.clear();
+        cursor = 0;
+        usedBytes = 0;
+        checkpoints.add(host.capture());
+    }
+
+    // Records a command that has just been executed
+    public void record(String command) {
+        if (checkpoints.isEmpty()) rebase();
+
+        // A new command discards everything that could have been redone
+        if (cursor < commands.size()) {
+            List<String> redoable = commands.subList(cursor, commands.size());
+            for (String redone : redoable) usedBytes -= bytes(redone);
+            redoable.clear();
+            while (last().position > cursor) drop(checkpoints.size() - 1);
+        }
+
+        commands.add(command);
+        usedBytes += bytes(command);
+        cursor++;
+
+        if (checkpointing && cursor % spacing == 0) {
+            Checkpoint checkpoint = host.capture();
+            checkpoint.position = cursor;
+            checkpoints.add(checkpoint);
+            usedBytes += checkpoint.bytes();
+        }
+
+        while (usedBytes > memoryBudget) {
+            if (checkpoints.size() == 1) {
+                rebase();  // No checkpoint to move to: start again from the canvas as it is now
+                break;
+            }
+            advanceBase();
+        }
+    }
+
+    // Makes the oldest checkpoint after the base the new base and forgets the commands
+    // before it
+    private void advanceBase() {
+        checkpoints.remove(0);
+        Checkpoint base = checkpoints.get(0);
+        usedBytes -= base.bytes();
+        int shift = base.position;
+        List<String> forgotten = commands.subList(0, shift);
+        for (String command : forgotten) usedBytes -= bytes(command);
+        forgotten.clear();
+        cursor -= shift;
+        for (Checkpoint c : checkpoints) c.position -= shift;
+    }
+
+    // Returns the undone command, or null if there is nothing to undo
+    public String undo() {
+        if (cursor == 0) return null;
+        int target = cursor - 1;
+
+        Checkpoint nearest = checkpoints.get(0);
+        for (Checkpoint c : checkpoints) {
+            if (c.position <= target) nearest = c;
+        }
+
+        host.restore(nearest);
+        for (int i = nearest.position; i < target; i++) {
+            host.replay(commands.get(i));
+        }
+        cursor = target;
+        return commands.get(target);
+    }
+
+    // Returns the redone command, or null if there is nothing to redo
+    public String redo() {
+        if (cursor == commands.size()) return null;
+        String command = commands.get(cursor);
+        host.replay(command);
+        cursor++;
+        return command;
+    }
+
+    public boolean canUndo() {
+        return cursor > 0;
+    }
+
+    public boolean canRedo() {
+        return cursor < commands.size();
+    }
+
+    public int getCheckpointCount() {
+        return checkpoints.size();
+    }
+
+    // Checkpoint images after the base plus the commands kept for replay
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    private Checkpoint last() {
+        return checkpoints.get(checkpoints.size() - 1);
+    }
+
+    private void drop(int index) {
+        usedBytes -= checkpoints.remove(index).bytes();
+    }
+
+    // Approximate heap of a kept command string
+    private static long bytes(String command) {
+        return 40 + 2L * command.length();
+    }
+}